@@ -0,0 +1,157 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Verificação de regressão das alocações por pacote: entrega datagramas a uma
+ * {@link ServerSession} como o despachante do {@link UDPServer} e os lê como
+ * a thread da sessão, com o conjunto de buffers folgado e esgotado, e depois
+ * faz downloads completos pela interface de loopback, somando o que todas as
+ * threads do servidor e do cliente alocam. O custo fixo de cada download
+ * (conexão, abertura do arquivo, mensagens) é cancelado pela diferença entre
+ * um arquivo pequeno e um grande. Falha se a sessão alocar mais que
+ * MAX_BYTES_PER_PACKET por pacote ou o download mais que
+ * MAX_TRANSFER_BYTES_PER_PACKET. Termina com status 1 na falha.
+ *
+ * <pre>
+ * java -cp out [-Dbench.packets=1000000] [-Dbench.transfer=64M] AllocationCheck
+ * </pre>
+ */
+public class AllocationCheck {
+
+    private static final int PACKETS = Integer.getInteger("bench.packets", 1_000_000);
+    private static final int POOL_CAPACITY = 64;
+    private static final int BURST = 1000; // datagramas por rajada, dentro da fila da sessão
+    private static final double MAX_BYTES_PER_PACKET = 0.1; // folga para a própria medição
+    // o download guarda mapas de um bit por segmento no remetente e no receptor (cerca de 0,6 B por pacote);
+    // um objeto por pacote, ou mesmo por ACK, já passaria deste limite
+    private static final double MAX_TRANSFER_BYTES_PER_PACKET = 1.0;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final long SMALL_FILE = 1 << 20;
+    private static final long LARGE_FILE = TransferBenchmark.parseSize(System.getProperty("bench.transfer", "64M"));
+    private static final int TRANSFER_ROUNDS = 3; // medições do download; vale a menor, livre de ruído alheio
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    interface Body {
+        void run() throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int segmentSize = Frame.maxSegmentSize();
+        BufferPool pool = new BufferPool(Frame.HEADER_SIZE + segmentSize, POOL_CAPACITY);
+        ServerSession session = new ServerSession(null, null, pool, new InetSocketAddress("localhost", 0), 1);
+        ByteBuffer datagram = ByteBuffer.allocateDirect(Frame.HEADER_SIZE + segmentSize);
+        Frame.writeHeader(datagram, Frame.DATA, 0, 1, 0, segmentSize);
+        ByteBuffer received = ByteBuffer.allocateDirect(Frame.MAX_DATAGRAM_SIZE);
+
+        // cada datagrama entregue é lido em seguida: o buffer volta ao conjunto
+        boolean ok = medir("entrega e leitura", () -> {
+            for (int i = 0; i < PACKETS; i++) {
+                session.deliver(datagram.clear());
+                session.receive(received);
+            }
+        });
+        // rajadas maiores que o conjunto, lidas só no fim: depois dos POOL_CAPACITY primeiros datagramas
+        // de cada rajada, o conjunto fica esgotado e os demais são descartados sem alocar
+        ok &= medir("conjunto esgotado", () -> {
+            for (int i = 0; i < PACKETS; i++) {
+                session.deliver(datagram.clear());
+                if (i % BURST == BURST - 1) {
+                    while (session.pendentes() > 0) {
+                        session.receive(received);
+                    }
+                }
+            }
+        });
+        ok &= medirTransferencia(segmentSize);
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean medir(String name, Body body) throws IOException {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            body.run();
+        }
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = THREADS.getThreadAllocatedBytes(thread);
+        body.run();
+        long allocated = THREADS.getThreadAllocatedBytes(thread) - allocatedBefore;
+        return avaliar(name, allocated, PACKETS, MAX_BYTES_PER_PACKET);
+    }
+
+    // downloads pelo loopback com uma única sessão: as threads das sessões do servidor continuam vivas
+    // no conjunto depois de cada download e o cliente de um só fluxo transfere na thread atual, então a
+    // soma por thread cobre os dois lados
+    private static boolean medirTransferencia(int segmentSize) throws Exception {
+        Path directory = Files.createTempDirectory("udp-alocacao");
+        Path serverDirectory = Files.createDirectory(directory.resolve("servidor"));
+        Path clientDirectory = Files.createDirectory(directory.resolve("cliente"));
+        TransferBenchmark.gerarArquivo(serverDirectory.resolve("pequeno.bin"), SMALL_FILE);
+        TransferBenchmark.gerarArquivo(serverDirectory.resolve("grande.bin"), LARGE_FILE);
+        long packets = (LARGE_FILE + segmentSize - 1) / segmentSize - (SMALL_FILE + segmentSize - 1) / segmentSize;
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long allocated = Long.MAX_VALUE;
+        try (UDPServer server = new UDPServer(0, serverDirectory)) {
+            Thread dispatcher = new Thread(() -> {
+                try {
+                    server.acceptConnections();
+                } catch (IOException e) {
+                    // servidor fechado
+                }
+            }, "despachante");
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+            try (UDPClient client = new UDPClient("localhost", server.port(), clientDirectory)) {
+                client.conectar(UDPServer.NO_PASSWORD);
+                for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                    baixar(client, clientDirectory, "pequeno.bin");
+                    baixar(client, clientDirectory, "grande.bin");
+                }
+                for (int i = 0; i < TRANSFER_ROUNDS; i++) {
+                    long small = baixar(client, clientDirectory, "pequeno.bin");
+                    long large = baixar(client, clientDirectory, "grande.bin");
+                    allocated = Math.min(allocated, Math.max(0, large - small));
+                }
+            }
+        } finally {
+            System.setOut(console);
+            TransferBenchmark.apagar(directory);
+        }
+        return avaliar("transferência completa", allocated, packets, MAX_TRANSFER_BYTES_PER_PACKET);
+    }
+
+    // bytes alocados por todas as threads durante o download
+    private static long baixar(UDPClient client, Path clientDirectory, String name) throws IOException {
+        long allocatedBefore = alocadoEmTodasAsThreads();
+        client.baixarArquivo(name);
+        long allocated = alocadoEmTodasAsThreads() - allocatedBefore;
+        Files.delete(clientDirectory.resolve(name));
+        return allocated;
+    }
+
+    private static long alocadoEmTodasAsThreads() {
+        long total = 0;
+        for (long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+            total += Math.max(0, bytes);
+        }
+        return total;
+    }
+
+    private static boolean avaliar(String name, long allocated, long packets, double limit) {
+        double perPacket = (double) allocated / packets;
+        boolean ok = perPacket <= limit;
+        System.out.printf("%-24s %8.3f B/pacote (%d bytes) %s%n", name, perPacket, allocated,
+                ok ? "ok" : "FALHOU: acima de " + limit);
+        return ok;
+    }
+}
@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+
+/**
+ * Verificação de regressão do cache de blocos com dois arquivos que têm a
+ * mesma {@link FileIdentity}: mesmo tamanho, mesma data de modificação e as
+ * mesmas amostras do início e do fim, diferindo só no meio, como as cópias
+ * feitas com cp -p ou tar -x. Baixa os dois do mesmo servidor, um depois do
+ * outro, e falha se o segundo chegar com o conteúdo do primeiro. Termina com
+ * status 1 na falha.
+ *
+ * <pre>
+ * java -cp out [-Dudp.cache.mb=64] CacheCollisionCheck
+ * </pre>
+ */
+public class CacheCollisionCheck {
+
+    private static final int FILE_SIZE = 4 << 20;
+    private static final long SEED = 1997;
+
+    public static void main(String[] args) throws Exception {
+        Path serverDirectory = Files.createTempDirectory("colisao-servidor");
+        Path clientDirectory = Files.createTempDirectory("colisao-cliente");
+        try {
+            byte[] content = new byte[FILE_SIZE];
+            new Random(SEED).nextBytes(content);
+            FileTime modified = FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+            Path first = serverDirectory.resolve("a.img");
+            Path second = serverDirectory.resolve("b.img");
+            Files.write(first, content);
+            content[FILE_SIZE / 2] ^= 1; // fora das amostras da identidade
+            Files.write(second, content);
+            Files.setLastModifiedTime(first, modified);
+            Files.setLastModifiedTime(second, modified);
+            if (!identidade(first).equals(identidade(second))) {
+                throw new IllegalStateException("Os arquivos de teste deveriam ter a mesma identidade.");
+            }
+
+            try (UDPServer server = new UDPServer(0, serverDirectory)) {
+                Thread acceptor = new Thread(() -> {
+                    try {
+                        server.acceptConnections();
+                    } catch (IOException e) {
+                        // servidor fechado
+                    }
+                });
+                acceptor.setDaemon(true);
+                acceptor.start();
+                for (String name : new String[] { "a.img", "b.img" }) {
+                    try (UDPClient client = new UDPClient("localhost", server.port(), clientDirectory)) {
+                        client.conectar(UDPServer.NO_PASSWORD);
+                        client.baixarArquivo(name);
+                    }
+                }
+            }
+
+            boolean ok = Files.mismatch(first, clientDirectory.resolve("a.img")) == -1
+                    && Files.mismatch(second, clientDirectory.resolve("b.img")) == -1;
+            System.out.println("arquivos com a mesma identidade: " + (ok ? "ok" : "FALHOU: conteúdo trocado pelo cache"));
+            if (!ok) {
+                System.exit(1);
+            }
+        } finally {
+            TransferBenchmark.apagar(serverDirectory);
+            TransferBenchmark.apagar(clientDirectory);
+        }
+    }
+
+    private static FileIdentity identidade(Path path) throws IOException {
+        try (FileChannel file = FileChannel.open(path)) {
+            return FileIdentity.of(path, file);
+        }
+    }
+}
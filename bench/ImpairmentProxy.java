@@ -0,0 +1,236 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Proxy UDP que reproduz uma rede com defeitos entre clientes e o servidor:
+ * perda, atraso, variação do atraso, reordenação, duplicação, corrupção de
+ * um bit e limite de banda, aplicados de forma independente em cada sentido. Todas as decisões
+ * vêm de um gerador com semente fixa, de modo que a mesma sequência de
+ * datagramas sofre sempre os mesmos defeitos. Cada cliente ganha o seu
+ * próprio socket até o servidor, que continua vendo endereços distintos.
+ */
+public class ImpairmentProxy implements Closeable {
+
+    /** Defeitos aplicados a cada sentido do tráfego. */
+    public static final class Profile {
+
+        final String name;
+        final double loss; // probabilidade de descartar o datagrama
+        final int latencyMillis; // atraso fixo
+        final int jitterMillis; // atraso adicional uniforme entre 0 e este valor
+        final double reorder; // probabilidade de atrasar o datagrama além dos seguintes
+        final double duplicate; // probabilidade de entregar o datagrama duas vezes
+        final double corrupt; // probabilidade de inverter um bit do datagrama
+        final long bytesPerSecond; // banda do enlace; 0 não limita
+
+        public Profile(String name, double loss, int latencyMillis, int jitterMillis,
+                       double reorder, double duplicate, double corrupt, long bytesPerSecond) {
+            this.name = name;
+            this.loss = loss;
+            this.latencyMillis = latencyMillis;
+            this.jitterMillis = jitterMillis;
+            this.reorder = reorder;
+            this.duplicate = duplicate;
+            this.corrupt = corrupt;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+    }
+
+    private static final int REORDER_DELAY_MILLIS = 5; // atraso extra de um datagrama reordenado
+    private static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024; // o proxy não deve perder datagramas além dos do perfil
+
+    // datagrama aguardando o instante de entrega
+    private static final class Pending {
+        final long deliverAt;
+        final long order;
+        final DatagramChannel channel;
+        final SocketAddress target; // null quando o canal já está conectado ao destino
+        final ByteBuffer data;
+
+        Pending(long deliverAt, long order, DatagramChannel channel, SocketAddress target, ByteBuffer data) {
+            this.deliverAt = deliverAt;
+            this.order = order;
+            this.channel = channel;
+            this.target = target;
+            this.data = data;
+        }
+    }
+
+    private final Profile profile;
+    private final InetSocketAddress serverAddress;
+    private final Random random;
+    private final Selector selector;
+    private final DatagramChannel front; // recebe dos clientes
+    private final Map<SocketAddress, DatagramChannel> upstreams = new HashMap<>();
+    private final PriorityQueue<Pending> pending = new PriorityQueue<>((a, b) -> a.deliverAt != b.deliverAt
+            ? Long.compare(a.deliverAt, b.deliverAt) : Long.compare(a.order, b.order));
+    private final ByteBuffer buffer = ByteBuffer.allocate(Frame.MAX_DATAGRAM_SIZE);
+    private final Thread thread;
+    private long order;
+    private long upstreamLinkFreeAt; // instante em que o enlace cliente → servidor fica livre
+    private long downstreamLinkFreeAt; // instante em que o enlace servidor → cliente fica livre
+
+    // contadores dos defeitos aplicados
+    private long forwarded;
+    private long dropped;
+    private long duplicated;
+    private long reordered;
+    private long corrupted;
+    private long overflowed;
+
+    public ImpairmentProxy(int serverPort, Profile profile, long seed) throws IOException {
+        this.profile = profile;
+        this.serverAddress = new InetSocketAddress("localhost", serverPort);
+        this.random = new Random(seed);
+        this.selector = Selector.open();
+        this.front = abrirCanal();
+        front.bind(new InetSocketAddress("localhost", 0));
+        front.configureBlocking(false);
+        front.register(selector, SelectionKey.OP_READ);
+        this.thread = new Thread(this::encaminhar, "proxy-" + profile.name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static DatagramChannel abrirCanal() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+        return channel;
+    }
+
+    public int port() throws IOException {
+        return ((InetSocketAddress) front.getLocalAddress()).getPort();
+    }
+
+    private void encaminhar() {
+        try {
+            while (selector.isOpen()) {
+                // entrega os datagramas cujo atraso já passou
+                long now = System.nanoTime();
+                while (!pending.isEmpty() && pending.peek().deliverAt <= now) {
+                    Pending next = pending.poll();
+                    int sent = next.target == null ? next.channel.write(next.data) : next.channel.send(next.data, next.target);
+                    if (sent == 0) {
+                        overflowed++; // buffer de envio cheio: o datagrama se perde como num roteador
+                    }
+                }
+
+                long waitMillis = 0;
+                if (!pending.isEmpty()) {
+                    waitMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(pending.peek().deliverAt - now));
+                }
+                selector.select(waitMillis);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    if (channel == front) {
+                        receberDoCliente();
+                    } else {
+                        receberDoServidor(channel, (SocketAddress) key.attachment());
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | RuntimeException e) {
+            if (selector.isOpen()) {
+                System.err.println("Erro no proxy: " + e.getMessage());
+            }
+        }
+    }
+
+    private void receberDoCliente() throws IOException {
+        SocketAddress client;
+        while ((client = receberDe(front)) != null) {
+            DatagramChannel upstream = upstreams.get(client);
+            if (upstream == null) {
+                upstream = abrirCanal();
+                upstream.connect(serverAddress);
+                upstream.configureBlocking(false);
+                upstream.register(selector, SelectionKey.OP_READ, client);
+                upstreams.put(client, upstream);
+            }
+            upstreamLinkFreeAt = agendar(upstream, null, upstreamLinkFreeAt);
+        }
+    }
+
+    private void receberDoServidor(DatagramChannel upstream, SocketAddress client) throws IOException {
+        while (receberDe(upstream) != null) {
+            downstreamLinkFreeAt = agendar(front, client, downstreamLinkFreeAt);
+        }
+    }
+
+    private SocketAddress receberDe(DatagramChannel channel) throws IOException {
+        buffer.clear();
+        SocketAddress source = channel.receive(buffer);
+        buffer.flip();
+        return source;
+    }
+
+    // aplica os defeitos ao datagrama em buffer e agenda a sua entrega; retorna quando o enlace fica livre
+    private long agendar(DatagramChannel channel, SocketAddress target, long linkFreeAt) {
+        if (random.nextDouble() < profile.loss) {
+            dropped++;
+            return linkFreeAt;
+        }
+        long now = System.nanoTime();
+        long departure = Math.max(now, linkFreeAt);
+        if (profile.bytesPerSecond > 0) {
+            // o datagrama ocupa o enlace pelo tempo de transmissão dos seus bytes
+            departure += TimeUnit.SECONDS.toNanos(buffer.remaining()) / profile.bytesPerSecond;
+        }
+        if (random.nextDouble() < profile.corrupt && buffer.hasRemaining()) {
+            int index = random.nextInt(buffer.remaining());
+            buffer.put(index, (byte) (buffer.get(index) ^ (1 << random.nextInt(Byte.SIZE))));
+            corrupted++;
+        }
+        int copies = random.nextDouble() < profile.duplicate ? 2 : 1;
+        duplicated += copies - 1;
+        for (int i = 0; i < copies; i++) {
+            long delayMillis = profile.latencyMillis;
+            if (profile.jitterMillis > 0) {
+                delayMillis += random.nextInt(profile.jitterMillis + 1);
+            }
+            if (random.nextDouble() < profile.reorder) {
+                delayMillis += REORDER_DELAY_MILLIS;
+                reordered++;
+            }
+            ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+            copy.put(buffer.duplicate()).flip();
+            pending.add(new Pending(departure + TimeUnit.MILLISECONDS.toNanos(delayMillis), order++, channel, target, copy));
+        }
+        forwarded++;
+        return profile.bytesPerSecond > 0 ? departure : linkFreeAt;
+    }
+
+    // resumo dos defeitos aplicados até agora
+    public String estatisticas() {
+        return String.format("%d encaminhados, %d descartados, %d duplicados, %d reordenados, %d corrompidos, %d sem espaço",
+                forwarded, dropped, duplicated, reordered, corrupted, overflowed);
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        front.close();
+        for (DatagramChannel upstream : upstreams.values()) {
+            upstream.close();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Transferências entre {@link UDPServer} e {@link UDPClient} através do
+ * {@link ImpairmentProxy}, uma vez para cada perfil de rede. Para cada perfil e
+ * sentido informa as transferências concluídas (com o conteúdo conferido),
+ * a vazão útil e os percentis 50 e 99 do tempo de conclusão. Com a mesma
+ * semente, os defeitos se repetem de uma execução para outra.
+ *
+ * <pre>
+ * java -cp out -Dbench.size=20M -Dbench.iterations=3 -Dbench.seed=1997 \
+ *      -Dbench.timeout=120 -Dbench.profiles=perda-1%,wan \
+ *      [-Dbench.content=texto -Dudp.compress=true] ImpairmentSuite
+ * </pre>
+ */
+public class ImpairmentSuite {
+
+    private static final ImpairmentProxy.Profile[] PROFILES = {
+            new ImpairmentProxy.Profile("limpo", 0, 0, 0, 0, 0, 0, 0),
+            new ImpairmentProxy.Profile("perda-1%", 0.01, 0, 0, 0, 0, 0, 0),
+            new ImpairmentProxy.Profile("perda-5%", 0.05, 0, 0, 0, 0, 0, 0),
+            new ImpairmentProxy.Profile("atraso-25ms", 0, 25, 0, 0, 0, 0, 0),
+            new ImpairmentProxy.Profile("jitter-10ms", 0, 10, 10, 0, 0, 0, 0),
+            new ImpairmentProxy.Profile("reordenacao-5%", 0, 1, 0, 0.05, 0, 0, 0),
+            new ImpairmentProxy.Profile("duplicacao-5%", 0, 0, 0, 0, 0.05, 0, 0),
+            new ImpairmentProxy.Profile("corrupcao-1%", 0, 0, 0, 0, 0, 0.01, 0),
+            new ImpairmentProxy.Profile("banda-100Mbit", 0, 0, 0, 0, 0, 0, 12_500_000),
+            new ImpairmentProxy.Profile("wan", 0.01, 20, 5, 0.01, 0.01, 0, 12_500_000),
+    };
+
+    private static final String DOWNLOAD_FILE = "impair-download.bin";
+    private static final String UPLOAD_FILE = "impair-upload.bin";
+
+    public static void main(String[] args) throws Exception {
+        String size = System.getProperty("bench.size", "20M");
+        int iterations = Integer.getInteger("bench.iterations", 3);
+        long seed = Long.getLong("bench.seed", 1997);
+        int timeoutSeconds = Integer.getInteger("bench.timeout", 120);
+        List<String> selected = Arrays.asList(System.getProperty("bench.profiles", "").split(","));
+
+        long fileSize = TransferBenchmark.parseSize(size);
+        Path directory = Files.createTempDirectory("udp-impair");
+        Path serverDirectory = Files.createDirectory(directory.resolve("servidor"));
+        Path clientDirectory = Files.createDirectory(directory.resolve("cliente"));
+        TransferBenchmark.gerarArquivo(serverDirectory.resolve(DOWNLOAD_FILE), fileSize);
+        TransferBenchmark.gerarArquivo(clientDirectory.resolve(UPLOAD_FILE), fileSize);
+
+        // os avisos por pacote dominariam o tempo medido
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        ExecutorService transfers = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "transferencia");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (UDPServer server = new UDPServer(0, serverDirectory)) {
+            Thread dispatcher = new Thread(() -> {
+                try {
+                    server.acceptConnections();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "despachante");
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+
+            console.printf("arquivo de %s, %d iterações, semente %d%n", size, iterations, seed);
+            for (ImpairmentProxy.Profile profile : PROFILES) {
+                if (!selected.contains("") && !selected.contains(profile.name)) {
+                    continue;
+                }
+                for (boolean upload : new boolean[] { false, true }) {
+                    long[] elapsed = new long[iterations];
+                    int completed = 0;
+                    String stats;
+                    try (ImpairmentProxy proxy = new ImpairmentProxy(server.port(), profile, seed)) {
+                        for (int i = 0; i < iterations; i++) {
+                            long time = transferir(transfers, proxy.port(), serverDirectory, clientDirectory,
+                                    upload, timeoutSeconds);
+                            if (time > 0) {
+                                elapsed[completed++] = time;
+                            }
+                        }
+                        stats = proxy.estatisticas();
+                    }
+                    console.println(resumo(profile.name, upload ? "upload" : "download", fileSize,
+                            Arrays.copyOf(elapsed, completed), iterations, stats));
+                }
+            }
+        } finally {
+            System.setOut(console);
+            transfers.shutdownNow();
+            TransferBenchmark.apagar(directory);
+        }
+    }
+
+    // uma transferência completa; retorna o tempo em ns ou -1 se falhou, expirou ou corrompeu o arquivo
+    private static long transferir(ExecutorService transfers, int proxyPort, Path serverDirectory,
+                                   Path clientDirectory, boolean upload, int timeoutSeconds) throws Exception {
+        String fileName = upload ? UPLOAD_FILE : DOWNLOAD_FILE;
+        Path source = (upload ? clientDirectory : serverDirectory).resolve(fileName);
+        Path target = (upload ? serverDirectory : clientDirectory).resolve(fileName);
+        try (UDPClient client = new UDPClient("localhost", proxyPort, clientDirectory)) {
+            Future<Long> transfer = transfers.submit(() -> {
+                client.conectar(upload ? UDPServer.PASSWORD : UDPServer.NO_PASSWORD);
+                long start = System.nanoTime();
+                if (upload) {
+                    client.enviarArquivo(fileName);
+                } else {
+                    client.baixarArquivo(fileName);
+                }
+                return System.nanoTime() - start;
+            });
+            try {
+                long time = transfer.get(timeoutSeconds, TimeUnit.SECONDS);
+                if (upload) {
+                    // o servidor publica o arquivo logo após confirmar o último segmento
+                    aguardarArquivo(target, TimeUnit.SECONDS.toNanos(timeoutSeconds));
+                }
+                return Files.mismatch(source, target) == -1 ? time : -1;
+            } catch (TimeoutException e) {
+                transfer.cancel(true);
+                return -1;
+            } catch (Exception e) {
+                System.err.println("Transferência falhou: " + e.getMessage());
+                return -1;
+            }
+        } finally {
+            Files.deleteIfExists(target);
+        }
+    }
+
+    private static void aguardarArquivo(Path path, long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (!Files.exists(path) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static String resumo(String profile, String direction, long fileSize, long[] elapsed,
+                                 int iterations, String stats) {
+        if (elapsed.length == 0) {
+            return String.format("%-16s %-8s %d/%d concluídas  (%s)", profile, direction, 0, iterations, stats);
+        }
+        Arrays.sort(elapsed);
+        double p50 = elapsed[TransferBenchmark.percentil(elapsed.length, 0.50)] / 1e9;
+        double p99 = elapsed[TransferBenchmark.percentil(elapsed.length, 0.99)] / 1e9;
+        return String.format("%-16s %-8s %d/%d concluídas %9.2f MB/s  p50 %9.1f ms  p99 %9.1f ms  (%s)",
+                profile, direction, elapsed.length, iterations, fileSize / 1e6 / p50, p50 * 1e3, p99 * 1e3, stats);
+    }
+}
@@ -0,0 +1,106 @@
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Verificação de regressão do {@link SendScheduler}: em cenários sorteados de
+ * limite global, limites e pesos por cliente e clientes que usam toda a
+ * parcela ou só parte dela, a soma das taxas concedidas nunca passa do limite
+ * global, nem quando ele é menor que a taxa mínima de um cliente, e nenhum
+ * cliente passa do seu próprio limite. O tempo é simulado, sem esperas.
+ * Termina com status 1 na falha.
+ *
+ * <pre>
+ * java -cp out [-Dbench.seed=1997] [-Dbench.scenarios=2000] SendSchedulerCheck
+ * </pre>
+ */
+public class SendSchedulerCheck {
+
+    private static final long SEED = Long.getLong("bench.seed", 1997);
+    private static final int SCENARIOS = Integer.getInteger("bench.scenarios", 2000);
+    private static final int MAX_CLIENTS = 8;
+    private static final int ROUNDS = 20; // divisões por cenário
+    private static final long ROUND_NANOS = 60_000_000L; // acima do intervalo entre divisões do escalonador
+    private static final long[] RATES = { 16 << 10, 32 << 10, 100 << 10, 256 << 10, 1 << 20, 10 << 20 };
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(SEED);
+        int failures = 0;
+        // os cenários da revisão: 100 KB/s para 4 clientes e 32 KB/s para um só
+        failures += verificar("100 KB/s, 4 clientes", 100 << 10, 4, new Random(SEED));
+        failures += verificar("32 KB/s, 1 cliente", 32 << 10, 1, new Random(SEED));
+        for (int scenario = 0; scenario < SCENARIOS && failures == 0; scenario++) {
+            long global = RATES[random.nextInt(RATES.length)];
+            failures += verificar("cenário " + scenario, global, 1 + random.nextInt(MAX_CLIENTS), random);
+        }
+        System.out.println(failures == 0 ? "soma das taxas dentro do limite global: ok" : "FALHOU");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    // retorna 1 se alguma divisão do cenário passou de um limite
+    private static int verificar(String name, long global, int clients, Random random) throws Exception {
+        System.setProperty("udp.rate.global.mb", "0");
+        System.setProperty("udp.rate.client.mb", "0");
+        try (SendScheduler scheduler = SendScheduler.configurado()) {
+            scheduler.setGlobalRateLimit(global);
+            List<SendScheduler.Client> opened = new ArrayList<>();
+            Map<String, Long> limits = new HashMap<>();
+            double[] usage = new double[clients]; // fração da taxa concedida que cada cliente usa
+            for (int i = 0; i < clients; i++) {
+                String host = "10.0.0." + (i + 1);
+                if (random.nextInt(3) == 0) {
+                    limits.put(host, RATES[random.nextInt(RATES.length)]);
+                    scheduler.setClientLimit(host, limits.get(host));
+                }
+                if (random.nextInt(3) == 0) {
+                    scheduler.setClientWeight(host, 1 + random.nextInt(10));
+                }
+                usage[i] = random.nextBoolean() ? 1 : random.nextDouble();
+                opened.add(scheduler.abrir(InetAddress.getByName(host)));
+                if (!dentroDosLimites(name, scheduler, limits)) {
+                    return 1;
+                }
+            }
+            long now = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                now += ROUND_NANOS;
+                // cada cliente gasta a sua fração do que recebeu na rodada; o primeiro consumo refaz a divisão
+                for (int i = 0; i < clients; i++) {
+                    long rate = scheduler.getClientRates().get("10.0.0." + (i + 1));
+                    opened.get(i).consumir((int) Math.min(Integer.MAX_VALUE, (long) (rate * usage[i] * ROUND_NANOS / 1e9)), now);
+                }
+                if (!dentroDosLimites(name, scheduler, limits)) {
+                    return 1;
+                }
+            }
+            for (SendScheduler.Client client : opened) {
+                client.close();
+            }
+        }
+        return 0;
+    }
+
+    private static boolean dentroDosLimites(String name, SendScheduler scheduler, Map<String, Long> limits) {
+        long sum = 0;
+        for (Map.Entry<String, Long> client : scheduler.getClientRates().entrySet()) {
+            Long limit = limits.get(client.getKey());
+            if (limit != null && client.getValue() > limit) {
+                System.out.println(name + ": " + client.getKey() + " recebeu " + client.getValue()
+                        + " B/s, acima do seu limite de " + limit + " B/s");
+                return false;
+            }
+            sum += client.getValue();
+        }
+        if (sum > scheduler.getGlobalRateLimit()) {
+            System.out.println(name + ": taxas somam " + sum + " B/s, acima do limite global de "
+                    + scheduler.getGlobalRateLimit() + " B/s " + scheduler.getClientRates());
+            return false;
+        }
+        return true;
+    }
+}
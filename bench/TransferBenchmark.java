@@ -0,0 +1,246 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+/**
+ * Medições de desempenho do protocolo, sem dependências externas: codificação
+ * e leitura do cabeçalho dos quadros, controle da janela do remetente e
+ * transferências completas pela interface de loopback entre {@link UDPServer}
+ * e {@link UDPClient}. Para cada tamanho de arquivo informa MB/s, pacotes/s,
+ * os percentis 50 e 99 do tempo de transferência e os bytes alocados por
+ * pacote, somados em todas as threads.
+ *
+ * <pre>
+ * java -cp out -Dbench.sizes=1M,100M,2G -Dbench.iterations=5 [-Dudp.segment=8948] \
+ *      [-Dbench.content=texto -Dudp.compress=true] TransferBenchmark
+ * </pre>
+ *
+ * Por padrão o conteúdo é pseudoaleatório, que não comprime; com
+ * -Dbench.content=texto é um log em CSV, como os que a compressão dos
+ * segmentos deve reduzir.
+ */
+public class TransferBenchmark {
+
+    private static final int PACKET_SIZE = Frame.maxSegmentSize(); // segmento negociado pelo servidor e pelo cliente, sem testes do caminho
+    private static final int WINDOW_SIZE = 1024;
+    private static final int MICRO_OPERATIONS = 20_000_000;
+    private static final int WINDOW_PACKETS = 2_000_000;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final long SEED = 1997;
+    private static final boolean TEXT_CONTENT = "texto".equals(System.getProperty("bench.content"));
+    private static final String[] LEVELS = { "INFO", "WARN", "ERROR" };
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        String[] sizes = System.getProperty("bench.sizes", "1M,100M,2G").split(",");
+        int iterations = Integer.getInteger("bench.iterations", 5);
+
+        medirQuadros();
+        medirJanela();
+        for (String size : sizes) {
+            medirTransferencia(size.trim(), iterations);
+        }
+    }
+
+    // escrita e leitura do cabeçalho de um quadro de dados, com o CRC32C do segmento
+    private static void medirQuadros() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Frame.MAX_DATAGRAM_SIZE);
+        medir("quadros: codificar + decodificar", MICRO_OPERATIONS, () -> {
+            long checksum = 0;
+            for (int i = 0; i < MICRO_OPERATIONS; i++) {
+                Frame.writeHeader(buffer, Frame.DATA, i & Frame.FLAG_ACK_NOW, 42, (long) i * PACKET_SIZE, PACKET_SIZE);
+                if (Frame.isValid(buffer, Frame.HEADER_SIZE + PACKET_SIZE) && Frame.checksumOk(buffer)
+                        && Frame.type(buffer) == Frame.DATA) {
+                    checksum += Frame.offset(buffer) + Frame.flags(buffer) + Frame.sessionId(buffer);
+                }
+            }
+            return checksum;
+        });
+    }
+
+    // marcação dos segmentos recebidos e confirmados, com 1% de perda reparada uma janela depois,
+    // e o controle de congestionamento e o estimador de RTT alimentados a cada 16 segmentos
+    private static void medirJanela() {
+        for (String name : new String[] { "newreno", "bbr" }) {
+            medir("janela (" + name + ")", WINDOW_PACKETS, () -> {
+                CongestionController congestion = name.equals("bbr")
+                        ? new BbrController(WINDOW_SIZE) : new NewRenoController(WINDOW_SIZE);
+                RttEstimator rtt = new RttEstimator();
+                BitSet received = new BitSet(WINDOW_PACKETS);
+                BitSet lost = new BitSet(WINDOW_PACKETS);
+                Random random = new Random(SEED);
+                int windowBase = 0;
+                int newlyAcked = 0;
+                long checksum = 0;
+                for (int seq = 0; seq < WINDOW_PACKETS; seq++) {
+                    if (random.nextInt(100) == 0) {
+                        lost.set(seq);
+                        congestion.onLoss(seq, seq + 1, false);
+                    } else {
+                        received.set(seq);
+                        newlyAcked++;
+                    }
+                    int repaired = seq - WINDOW_SIZE;
+                    if (repaired >= 0 && lost.get(repaired)) {
+                        received.set(repaired);
+                        newlyAcked++;
+                    }
+                    windowBase = received.nextClearBit(windowBase);
+                    if (seq % 16 == 15) {
+                        rtt.sample(1_000_000 + (seq & 0xFFFF));
+                        congestion.onAck(newlyAcked, rtt.srttNanos());
+                        checksum += congestion.congestionWindow() + windowBase;
+                        newlyAcked = 0;
+                    }
+                }
+                return checksum + windowBase;
+            });
+        }
+    }
+
+    private static void medir(String name, long operations, LongSupplier body) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            body.getAsLong();
+        }
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = THREADS.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long checksum = body.getAsLong();
+        long elapsed = System.nanoTime() - start;
+        long allocated = THREADS.getThreadAllocatedBytes(thread) - allocatedBefore;
+        System.out.printf("%-36s %8.2f ns/op %10.2f Mops/s %8.3f B/op (checksum %d)%n", name,
+                (double) elapsed / operations, operations * 1e3 / elapsed, (double) allocated / operations, checksum);
+    }
+
+    // downloads completos de um arquivo do tamanho informado pelo loopback
+    private static void medirTransferencia(String size, int iterations) throws Exception {
+        long fileSize = parseSize(size);
+        long packets = (fileSize + PACKET_SIZE - 1) / PACKET_SIZE;
+        String fileName = "bench-" + size + ".bin";
+        Path directory = Files.createTempDirectory("udp-bench");
+        Path serverDirectory = Files.createDirectory(directory.resolve("servidor"));
+        Path clientDirectory = Files.createDirectory(directory.resolve("cliente"));
+        gerarArquivo(serverDirectory.resolve(fileName), fileSize);
+
+        // os avisos por pacote dominariam o tempo medido
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long[] elapsed = new long[iterations];
+        long allocated = 0;
+        try (UDPServer server = new UDPServer(0, serverDirectory)) {
+            Thread dispatcher = new Thread(() -> {
+                try {
+                    server.acceptConnections();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "despachante");
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+
+            for (int i = 0; i < iterations; i++) {
+                try (UDPClient client = new UDPClient("localhost", server.port(), clientDirectory)) {
+                    client.conectar(UDPServer.NO_PASSWORD);
+                    long allocatedBefore = alocadoEmTodasAsThreads();
+                    long start = System.nanoTime();
+                    client.baixarArquivo(fileName);
+                    elapsed[i] = System.nanoTime() - start;
+                    allocated += alocadoEmTodasAsThreads() - allocatedBefore;
+                }
+                Path received = clientDirectory.resolve(fileName);
+                if (Files.size(received) != fileSize) {
+                    throw new IOException("Arquivo recebido com tamanho " + Files.size(received) + " em vez de " + fileSize);
+                }
+                Files.delete(received);
+            }
+        } finally {
+            System.setOut(console);
+            apagar(directory);
+        }
+
+        Arrays.sort(elapsed);
+        double p50 = elapsed[percentil(iterations, 0.50)] / 1e9;
+        double p99 = elapsed[percentil(iterations, 0.99)] / 1e9;
+        System.out.printf("transferência %-6s x%d  %9.2f MB/s %12.0f pacotes/s  p50 %8.1f ms  p99 %8.1f ms %10.1f B/pacote%n",
+                size, iterations, fileSize / 1e6 / p50, packets / p50, p50 * 1e3, p99 * 1e3,
+                (double) allocated / iterations / Math.max(1, packets));
+    }
+
+    static int percentil(int count, double fraction) {
+        return Math.min(count - 1, (int) Math.ceil(fraction * count) - 1);
+    }
+
+    private static long alocadoEmTodasAsThreads() {
+        long total = 0;
+        for (long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+            total += Math.max(0, bytes);
+        }
+        return total;
+    }
+
+    static long parseSize(String size) {
+        long unit = switch (Character.toUpperCase(size.charAt(size.length() - 1))) {
+            case 'K' -> 1L << 10;
+            case 'M' -> 1L << 20;
+            case 'G' -> 1L << 30;
+            default -> 1;
+        };
+        String digits = unit == 1 ? size : size.substring(0, size.length() - 1);
+        return Long.parseLong(digits) * unit;
+    }
+
+    // conteúdo pseudoaleatório (ou log em CSV) com semente fixa, gravado em blocos de 1 MB
+    static void gerarArquivo(Path path, long size) throws IOException {
+        Random random = new Random(SEED);
+        byte[] chunk = new byte[1 << 20];
+        long line = 0;
+        try (OutputStream out = Files.newOutputStream(path, StandardOpenOption.CREATE_NEW)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                if (TEXT_CONTENT) {
+                    line = gerarLinhas(random, chunk, line);
+                } else {
+                    random.nextBytes(chunk);
+                }
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+    // preenche chunk com linhas de log a partir da linha first e retorna a próxima linha
+    private static long gerarLinhas(Random random, byte[] chunk, long first) {
+        StringBuilder text = new StringBuilder(chunk.length + 128);
+        long line = first;
+        while (text.length() < chunk.length) {
+            text.append("2026-10-18T").append(line / 3600 % 24).append(':').append(line / 60 % 60).append(':')
+                    .append(line % 60).append(',').append(LEVELS[random.nextInt(LEVELS.length)])
+                    .append(",servidor-").append(1 + random.nextInt(9)).append(",req=").append(line)
+                    .append(",latencia_ms=").append(1 + random.nextInt(500)).append('\n');
+            line++;
+        }
+        byte[] bytes = text.toString().getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, chunk, 0, chunk.length);
+        return line;
+    }
+
+    static void apagar(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Manifesto de um lote: os arquivos, na ordem em que são concatenados, com
+ * tamanho e data de modificação, no mesmo formato das linhas da listagem.
+ * O servidor o envia antes do conteúdo; a identidade do lote (tamanho total,
+ * data mais recente e uma impressão digital do manifesto) é conferida no
+ * anúncio do conteúdo, de modo que um lote que mudou entre os dois pedidos é
+ * recusado em vez de ser gravado com os tamanhos errados.
+ */
+public class BatchManifest {
+
+    final List<String> names = new ArrayList<>();
+    private final List<Long> sizes = new ArrayList<>();
+    private final List<Long> modified = new ArrayList<>();
+
+    void adicionar(String name, long size, long modifiedAt) {
+        names.add(name);
+        sizes.add(size);
+        modified.add(modifiedAt);
+    }
+
+    boolean vazio() {
+        return names.isEmpty();
+    }
+
+    byte[] bytes() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < names.size(); i++) {
+            text.append(names.get(i)).append('\t').append(sizes.get(i)).append('\t').append(modified.get(i)).append('\n');
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // lê um manifesto recebido, recusando nomes que sairiam do diretório de destino
+    static BatchManifest ler(byte[] bytes) throws IOException {
+        BatchManifest manifest = new BatchManifest();
+        for (String line : new String(bytes, StandardCharsets.UTF_8).split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split("\t");
+            try {
+                if (fields.length != 3 || Long.parseLong(fields[1]) < 0 || !nomeSimples(fields[0])) {
+                    throw new IOException("Manifesto do lote inválido: " + line);
+                }
+                manifest.adicionar(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+            } catch (NumberFormatException e) {
+                throw new IOException("Manifesto do lote inválido: " + line, e);
+            }
+        }
+        return manifest;
+    }
+
+    private static boolean nomeSimples(String name) {
+        Path path = Path.of(name);
+        return !name.isEmpty() && !path.isAbsolute() && path.getNameCount() == 1
+                && !name.equals(".") && !name.equals("..");
+    }
+
+    long total() {
+        return sizes.stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * Identidade do conteúdo do lote: tamanho total, data de modificação mais
+     * recente e os primeiros 64 bits do SHA-256 do manifesto, nunca zero.
+     */
+    FileIdentity identidade() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long fingerprint = ByteBuffer.wrap(digest.digest(bytes())).getLong();
+        long latest = modified.stream().mapToLong(Long::longValue).max().orElse(0);
+        return new FileIdentity(total(), latest, fingerprint == 0 ? 1 : fingerprint);
+    }
+
+    // os arquivos do lote em directory, com cada nome transformado por naming, vistos como um só
+    ConcatenatedFile abrir(Path directory, UnaryOperator<Path> naming, OpenOption... options) {
+        Path[] paths = new Path[names.size()];
+        long[] lengths = new long[names.size()];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = naming.apply(directory.resolve(names.get(i)));
+            lengths[i] = sizes.get(i);
+        }
+        return new ConcatenatedFile(paths, lengths, options);
+    }
+
+    long tamanho(int index) {
+        return sizes.get(index);
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Controle baseado em taxa, no estilo BBR: estima a banda do gargalo (máximo
+ * das taxas de entrega recentes) e o RTT mínimo, limita os dados em trânsito
+ * a um múltiplo do produto banda-atraso e espaça os envios pela banda
+ * estimada. A janela também comporta a maior rajada de segmentos confirmada
+ * por um único ACK nas rodadas recentes, já que o receptor confirma em lote.
+ * Perdas isoladas não reduzem a janela; uma expiração do temporizador a
+ * reduz a MIN_WINDOW, que volta a crescer a cada ACK, até que os segmentos em
+ * trânsito no momento da expiração tenham sido entregues.
+ */
+public class BbrController implements CongestionController {
+
+    private static final double STARTUP_GAIN = 2.885; // 2 / ln(2): dobra a taxa a cada RTT
+    private static final double CWND_GAIN = 2.0;
+    private static final double[] PROBE_BW_GAINS = { 1.25, 0.75, 1, 1, 1, 1, 1, 1 };
+    private static final int BW_FILTER_ROUNDS = 10; // rodadas consideradas no máximo da banda
+    private static final int FULL_BW_ROUNDS = 3; // rodadas sem crescimento para sair da partida
+    private static final long MIN_RTT_WINDOW_NANOS = 10_000_000_000L;
+    private static final int MIN_WINDOW = 4;
+
+    private enum State { STARTUP, DRAIN, PROBE_BW }
+
+    private final int maxWindow;
+    private State state = State.STARTUP;
+
+    // estimativas do caminho
+    private final double[] bwSamples = new double[BW_FILTER_ROUNDS]; // segmentos por ns
+    private int bwSampleIndex;
+    private double btlBw;
+    private final int[] aggregationSamples = new int[BW_FILTER_ROUNDS]; // maior ACK de cada rodada recente
+    private int ackAggregation; // maior número de segmentos confirmados por um único ACK nas rodadas recentes
+    private int roundAggregation; // maior ACK da rodada atual
+    private long minRtt = Long.MAX_VALUE;
+    private long minRttStamp;
+
+    // amostra de taxa de entrega da rodada atual
+    private long totalDelivered;
+    private int roundDelivered;
+    private long roundStart;
+
+    private double fullBw;
+    private int fullBwRounds;
+    private int cycleIndex;
+
+    // recuperação de uma expiração do temporizador
+    private boolean recovering;
+    private long recoveryEnd; // total entregue que encerra a recuperação
+    private int recoveryWindow;
+
+    public BbrController(int maxWindow) {
+        this.maxWindow = maxWindow;
+    }
+
+    @Override
+    public int congestionWindow() {
+        int window = janelaDoModelo();
+        return recovering ? Math.min(window, recoveryWindow) : window;
+    }
+
+    private int janelaDoModelo() {
+        if (btlBw == 0) {
+            // sem estimativa ainda: cresce como a partida lenta
+            return (int) Math.min(maxWindow, INITIAL_WINDOW + totalDelivered);
+        }
+        double gain = state == State.PROBE_BW ? CWND_GAIN : STARTUP_GAIN;
+        long bdp = (long) Math.ceil(btlBw * minRtt);
+        return (int) Math.max(MIN_WINDOW, Math.min(maxWindow, gain * bdp + ackAggregation));
+    }
+
+    @Override
+    public long pacingIntervalNanos() {
+        if (btlBw == 0) {
+            return 0;
+        }
+        return (long) (1 / (pacingGain() * btlBw));
+    }
+
+    private double pacingGain() {
+        switch (state) {
+            case STARTUP:
+                return STARTUP_GAIN;
+            case DRAIN:
+                return 1 / STARTUP_GAIN;
+            default:
+                return PROBE_BW_GAINS[cycleIndex];
+        }
+    }
+
+    @Override
+    public void onAck(int ackedSegments, long rttNanos) {
+        long now = System.nanoTime();
+        if (rttNanos > 0 && (rttNanos <= minRtt || now - minRttStamp > MIN_RTT_WINDOW_NANOS)) {
+            minRtt = rttNanos;
+            minRttStamp = now;
+        }
+
+        roundAggregation = Math.max(roundAggregation, ackedSegments);
+        ackAggregation = Math.max(ackAggregation, roundAggregation);
+        totalDelivered += ackedSegments;
+        if (recovering) {
+            // cresce como a partida lenta e volta à janela do modelo ao fim da recuperação
+            recoveryWindow += ackedSegments;
+            recovering = totalDelivered < recoveryEnd;
+        }
+        roundDelivered += ackedSegments;
+        if (roundStart == 0) {
+            roundStart = now;
+        }
+
+        // uma rodada dura pelo menos um RTT mínimo
+        long elapsed = now - roundStart;
+        if (minRtt == Long.MAX_VALUE || elapsed < minRtt) {
+            return;
+        }
+        bwSamples[bwSampleIndex] = (double) roundDelivered / elapsed;
+        aggregationSamples[bwSampleIndex] = roundAggregation;
+        bwSampleIndex = (bwSampleIndex + 1) % BW_FILTER_ROUNDS;
+        btlBw = 0;
+        ackAggregation = 0;
+        for (int i = 0; i < BW_FILTER_ROUNDS; i++) {
+            btlBw = Math.max(btlBw, bwSamples[i]);
+            ackAggregation = Math.max(ackAggregation, aggregationSamples[i]);
+        }
+        roundDelivered = 0;
+        roundAggregation = 0;
+        roundStart = now;
+        avancarEstado();
+    }
+
+    private void avancarEstado() {
+        switch (state) {
+            case STARTUP:
+                // sai da partida quando a banda para de crescer 25% por rodada
+                if (btlBw >= fullBw * 1.25) {
+                    fullBw = btlBw;
+                    fullBwRounds = 0;
+                } else if (++fullBwRounds >= FULL_BW_ROUNDS) {
+                    state = State.DRAIN;
+                }
+                break;
+            case DRAIN:
+                // uma rodada abaixo da banda esvazia a fila criada na partida
+                state = State.PROBE_BW;
+                cycleIndex = 0;
+                break;
+            default:
+                cycleIndex = (cycleIndex + 1) % PROBE_BW_GAINS.length;
+        }
+    }
+
+    @Override
+    public void onLoss(int seq, int nextSeqNum, boolean timeout) {
+        if (!timeout) {
+            return; // a janela segue o modelo do caminho; a perda só é reparada pelo FileSender
+        }
+        // expiração do temporizador: envia com cautela até entregar o que estava em trânsito
+        recovering = true;
+        recoveryWindow = MIN_WINDOW;
+        recoveryEnd = Math.max(recoveryEnd, totalDelivered + Math.max(1, nextSeqNum - seq));
+    }
+}
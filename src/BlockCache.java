@@ -0,0 +1,316 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache de blocos de arquivo fora do heap, compartilhado pelas sessões que
+ * enviam arquivos. Cada bloco de BLOCK_SIZE bytes é identificado pela origem
+ * do arquivo (caminho real e chave do sistema de arquivos), pela sua
+ * identidade ({@link FileIdentity}) e pelo seu índice. A identidade sozinha
+ * não basta: cópias com o mesmo tamanho, data e amostras do início e do fim,
+ * comuns depois de cp -p ou tar -x, só diferem no meio; e a origem sozinha
+ * não percebe um arquivo alterado. As entradas são
+ * divididas em SHARDS partes, cada uma com a sua trava e a sua ordem LRU; a
+ * memória total é limitada por -Dudp.cache.mb e os buffers dos blocos
+ * removidos são reaproveitados. Com a parte cheia, um bloco só entra no lugar
+ * do menos recente se tiver sido lido mais vezes que ele, pela frequência
+ * aproximada de {@link FrequencySketch} (admissão TinyLFU); os demais são
+ * lidos direto do disco. Assim a primeira passada por um arquivo grande não
+ * expulsa os blocos populares, e um arquivo grande baixado de novo passa a
+ * ser servido do cache.
+ */
+public class BlockCache {
+
+    static final int BLOCK_SIZE = FileSender.IO_BATCH_BYTES;
+    private static final int SHARDS = 16;
+    private static final ThreadLocal<Key> PROBE = ThreadLocal.withInitial(() -> new Key(null, null, -1));
+
+    // caminho real do arquivo e, se o sistema de arquivos tiver, a sua chave (dispositivo e inode)
+    private static final class Origin {
+        final Path real;
+        final Object fileKey;
+
+        Origin(Path real, Object fileKey) {
+            this.real = real;
+            this.fileKey = fileKey;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Origin)) {
+                return false;
+            }
+            Origin origin = (Origin) other;
+            return real.equals(origin.real) && Objects.equals(fileKey, origin.fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return real.hashCode() * 31 + Objects.hashCode(fileKey);
+        }
+    }
+
+    // bloco de um arquivo; as buscas reaproveitam a chave da thread (PROBE) e só a entrada
+    // inserida no cache ganha uma chave própria, que não muda mais
+    private static final class Key {
+        Object origin;
+        FileIdentity identity;
+        long block;
+
+        Key(Object origin, FileIdentity identity, long block) {
+            this.origin = origin;
+            this.identity = identity;
+            this.block = block;
+        }
+
+        Key copia() {
+            return new Key(origin, identity, block);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return block == key.block && identity.equals(key.identity) && origin.equals(key.origin);
+        }
+
+        @Override
+        public int hashCode() {
+            return (origin.hashCode() * 31 + identity.hashCode()) * 31 + Long.hashCode(block);
+        }
+    }
+
+    // parte do cache com a sua própria ordem LRU
+    private final class Shard {
+        final ArrayDeque<ByteBuffer> free = new ArrayDeque<>(); // buffers de blocos removidos
+        final LinkedHashMap<Key, ByteBuffer> blocks = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, ByteBuffer> eldest) {
+                if (size() <= shardCapacity) {
+                    return false;
+                }
+                free.push(eldest.getValue());
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Frequência aproximada das leituras de cada bloco: count-min com
+     * quatro linhas de contadores saturados em 15, todos divididos pela
+     * metade a cada SAMPLE_FACTOR leituras por bloco do cache, para que a
+     * popularidade antiga expire.
+     */
+    private static final class FrequencySketch {
+        private static final int[] SEEDS = { 0x97CB3127, 0xB7E15163, 0xC2B2AE35, 0x9E3779B9 };
+        private static final int MAX_COUNT = 15;
+        private static final int SAMPLE_FACTOR = 10;
+
+        private final int[] counters;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int blocks) {
+            counters = new int[Math.max(16, Integer.highestOneBit(Math.max(1, blocks) * 4 - 1) << 1)];
+            sampleSize = Math.max(1, blocks) * SAMPLE_FACTOR;
+        }
+
+        private int indice(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return (h + row) & (counters.length - 1);
+        }
+
+        synchronized void registrar(int hash) {
+            boolean added = false;
+            for (int row = 0; row < SEEDS.length; row++) {
+                int index = indice(hash, row);
+                if (counters[index] < MAX_COUNT) {
+                    counters[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        synchronized int frequencia(int hash) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < SEEDS.length; row++) {
+                frequency = Math.min(frequency, counters[indice(hash, row)]);
+            }
+            return frequency;
+        }
+    }
+
+    private final int shardCapacity; // blocos por parte
+    private final Shard[] shards = new Shard[SHARDS];
+    private final FrequencySketch sketch;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder bypassed = new LongAdder(); // leituras de blocos não admitidos no cache
+
+    public BlockCache(long capacityBytes) {
+        this.shardCapacity = (int) Math.max(1, capacityBytes / BLOCK_SIZE / SHARDS);
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+        this.sketch = new FrequencySketch(shardCapacity * SHARDS);
+    }
+
+    // origem do arquivo no cache, calculada uma vez por transferência
+    static Object origem(Path path) throws IOException {
+        Path real = path.toRealPath();
+        return new Origin(real, Files.readAttributes(real, BasicFileAttributes.class).fileKey());
+    }
+
+    // cache com a capacidade de -Dudp.cache.mb (padrão 64 MB); null se for 0
+    static BlockCache configurado() {
+        long megabytes = Long.getLong("udp.cache.mb", 64);
+        return megabytes > 0 ? new BlockCache(megabytes << 20) : null;
+    }
+
+    public long capacidade() {
+        return (long) shardCapacity * SHARDS * BLOCK_SIZE;
+    }
+
+    /**
+     * Preenche target, da posição até o limite, com os bytes do arquivo a
+     * partir de position, servindo-os do cache e carregando do disco os
+     * blocos que faltam e forem admitidos. A origem vem de {@link #origem}.
+     */
+    public void ler(Object origin, FileIdentity identity, PositionalFile file, long position, ByteBuffer target)
+            throws IOException {
+        while (target.hasRemaining()) {
+            long block = position / BLOCK_SIZE;
+            int within = (int) (position % BLOCK_SIZE);
+            int length = (int) Math.min(target.remaining(), Math.min(BLOCK_SIZE, identity.size - block * BLOCK_SIZE) - within);
+            if (length <= 0) {
+                throw new IOException("Fim inesperado do arquivo na posição " + position);
+            }
+            Key key = PROBE.get();
+            key.origin = origin;
+            key.identity = identity;
+            key.block = block;
+            Shard shard = shards[Math.floorMod(key.hashCode(), SHARDS)];
+            if (within == 0) {
+                // uma leitura por passada: as que começam no meio do bloco continuam a anterior
+                sketch.registrar(key.hashCode());
+            }
+            if (copiar(shard, key, within, length, target)) {
+                hits.increment();
+            } else if (admitir(shard, key)) {
+                misses.increment();
+                carregar(shard, key, file, identity.size);
+                if (!copiar(shard, key, within, length, target)) {
+                    // removido por outras sessões logo após a carga
+                    lerTrecho(file, position, length, target);
+                }
+            } else {
+                bypassed.increment();
+                lerTrecho(file, position, length, target);
+            }
+            position += length;
+        }
+    }
+
+    // copia o trecho do bloco, se estiver no cache; a cópia é feita sob a trava para que o
+    // buffer não seja reaproveitado no meio dela
+    private boolean copiar(Shard shard, Key key, int within, int length, ByteBuffer target) {
+        synchronized (shard) {
+            ByteBuffer block = shard.blocks.get(key);
+            if (block == null) {
+                return false;
+            }
+            target.put(target.position(), block, within, length);
+        }
+        target.position(target.position() + length);
+        return true;
+    }
+
+    // com a parte cheia, o bloco só entra se for mais frequente que o menos recente, que ele expulsaria
+    private boolean admitir(Shard shard, Key key) {
+        Key victim;
+        synchronized (shard) {
+            if (shard.blocks.size() < shardCapacity) {
+                return true;
+            }
+            victim = shard.blocks.keySet().iterator().next();
+        }
+        return sketch.frequencia(key.hashCode()) > sketch.frequencia(victim.hashCode());
+    }
+
+    private static void lerTrecho(PositionalFile file, long position, int length, ByteBuffer target) throws IOException {
+        ByteBuffer piece = target.duplicate();
+        piece.limit(piece.position() + length);
+        lerDoDisco(file, position, piece);
+        target.position(piece.position());
+    }
+
+    // lê o bloco do disco fora da trava e o insere; um bloco carregado ao mesmo tempo por outra
+    // sessão é mantido e o buffer desta carga volta para a lista de livres
+    private void carregar(Shard shard, Key key, PositionalFile file, long fileSize) throws IOException {
+        ByteBuffer buffer;
+        synchronized (shard) {
+            buffer = shard.free.poll();
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        }
+        buffer.clear().limit((int) Math.min(BLOCK_SIZE, fileSize - key.block * BLOCK_SIZE));
+        lerDoDisco(file, key.block * BLOCK_SIZE, buffer);
+        buffer.flip();
+        synchronized (shard) {
+            if (shard.blocks.putIfAbsent(key.copia(), buffer) != null) {
+                shard.free.push(buffer);
+            }
+        }
+    }
+
+    private static void lerDoDisco(PositionalFile file, long position, ByteBuffer target) throws IOException {
+        long start = position - target.position();
+        while (target.hasRemaining()) {
+            if (file.read(target, start + target.position()) < 0) {
+                throw new IOException("Fim inesperado do arquivo na posição " + (start + target.position()));
+            }
+        }
+    }
+
+    public long acertos() {
+        return hits.sum();
+    }
+
+    public long falhas() {
+        return misses.sum();
+    }
+
+    public long remocoes() {
+        return evictions.sum();
+    }
+
+    public long diretoDoDisco() {
+        return bypassed.sum();
+    }
+
+    public String estatisticas() {
+        long hits = acertos();
+        long total = hits + falhas();
+        return String.format("%d acertos, %d falhas (%.1f%% de acerto), %d blocos removidos, %d leituras não admitidas",
+                hits, falhas(), total == 0 ? 0.0 : 100.0 * hits / total, remocoes(), diretoDoDisco());
+    }
+}
@@ -0,0 +1,269 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Assinaturas dos blocos de um arquivo para a sincronização por diferenças,
+ * no estilo do rsync: para cada bloco, um checksum fraco que desliza byte a
+ * byte (o de Adler usado pelo rsync) e os 64 primeiros bits do SHA-256. O
+ * servidor gera o arquivo de assinaturas de cada arquivo uma vez e o envia
+ * como um arquivo comum; o cliente percorre a sua cópia antiga procurando os
+ * blocos em qualquer posição, copia os encontrados para o temporário ".part"
+ * e os marca no {@link TransferJournal}. O download seguinte retoma a partir
+ * do diário e pede apenas os segmentos que faltam, e o SHA-256 do arquivo
+ * inteiro conferido no FIN garante que a montagem ficou correta. O bloco é um
+ * múltiplo do segmento, próximo da raiz quadrada do tamanho do arquivo.
+ */
+public class BlockSignatures {
+
+    private static final int MAGIC = 0x55534947; // "USIG"
+    private static final int HEADER_SIZE = 3 * Integer.BYTES + 3 * Long.BYTES + Integer.BYTES;
+    private static final int ENTRY_SIZE = Integer.BYTES + Long.BYTES;
+    private static final int MAX_BLOCK_BYTES = 128 * 1024;
+    private static final int SCAN_BUFFER_SIZE = 1 << 20;
+
+    final FileIdentity identity; // arquivo do servidor descrito pelas assinaturas
+    final int segmentSize;
+    final int blockSize;
+    private final int count;
+    private final int[] weak;
+    private final long[] strong;
+    private final int[] heads; // primeiro bloco de cada posição da tabela de checksums fracos, ou -1
+    private final int[] next; // próximo bloco com a mesma posição na tabela, ou -1
+    private final MessageDigest sha256 = sha256();
+
+    private BlockSignatures(FileIdentity identity, int segmentSize, int blockSize, int[] weak, long[] strong) {
+        this.identity = identity;
+        this.segmentSize = segmentSize;
+        this.blockSize = blockSize;
+        this.count = weak.length;
+        this.weak = weak;
+        this.strong = strong;
+        this.heads = new int[Math.max(2, Integer.highestOneBit(Math.max(1, count)) << 1)];
+        this.next = new int[count];
+        Arrays.fill(heads, -1);
+        for (int block = count - 1; block >= 0; block--) {
+            int slot = posicao(weak[block]);
+            next[block] = heads[slot];
+            heads[slot] = block;
+        }
+    }
+
+    // múltiplo do segmento mais próximo da raiz quadrada do tamanho, entre um segmento e MAX_BLOCK_BYTES
+    static int tamanhoDoBloco(long fileSize, int segmentSize) {
+        long segments = Math.round(Math.sqrt((double) fileSize) / segmentSize);
+        return (int) (Math.max(1, Math.min(MAX_BLOCK_BYTES / segmentSize, segments)) * segmentSize);
+    }
+
+    /**
+     * Gera num arquivo temporário as assinaturas dos blocos do arquivo aberto
+     * em file, com blocos múltiplos de segmentSize.
+     */
+    static Path gerar(FileChannel file, FileIdentity identity, int segmentSize) throws IOException {
+        int blockSize = tamanhoDoBloco(identity.size, segmentSize);
+        long blocks = (identity.size + blockSize - 1) / blockSize;
+        Path path = Files.createTempFile("udp-", ".assinaturas");
+        path.toFile().deleteOnExit();
+        MessageDigest sha256 = sha256();
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(segmentSize).putInt(blockSize)
+                    .putLong(identity.size).putLong(identity.modified).putLong(identity.fingerprint)
+                    .putInt((int) blocks);
+            escreverTudo(out, header.flip());
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+            ByteBuffer entries = ByteBuffer.allocate(Math.max(1, SCAN_BUFFER_SIZE / ENTRY_SIZE) * ENTRY_SIZE);
+            for (long position = 0; position < identity.size; position += blockSize) {
+                block.clear().limit((int) Math.min(blockSize, identity.size - position));
+                while (block.hasRemaining()) {
+                    if (file.read(block, position + block.position()) < 0) {
+                        throw new IOException("Fim inesperado do arquivo ao gerar as assinaturas na posição " + position);
+                    }
+                }
+                if (entries.remaining() < ENTRY_SIZE) {
+                    escreverTudo(out, entries.flip());
+                    entries.clear();
+                }
+                entries.putInt(fraco(block.array(), 0, block.limit()))
+                        .putLong(forte(sha256, block.array(), 0, block.limit()));
+            }
+            escreverTudo(out, entries.flip());
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        return path;
+    }
+
+    // lê um arquivo de assinaturas recebido do servidor
+    static BlockSignatures ler(Path path) throws IOException {
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (file.remaining() < HEADER_SIZE || file.getInt() != MAGIC) {
+            throw new IOException("Arquivo de assinaturas inválido.");
+        }
+        int segmentSize = file.getInt();
+        int blockSize = file.getInt();
+        FileIdentity identity = new FileIdentity(file.getLong(), file.getLong(), file.getLong());
+        int count = file.getInt();
+        if (segmentSize <= 0 || blockSize <= 0 || blockSize % segmentSize != 0 || count < 0
+                || count != (identity.size + blockSize - 1) / blockSize
+                || file.remaining() != (long) count * ENTRY_SIZE) {
+            throw new IOException("Arquivo de assinaturas inválido.");
+        }
+        int[] weak = new int[count];
+        long[] strong = new long[count];
+        for (int block = 0; block < count; block++) {
+            weak[block] = file.getInt();
+            strong[block] = file.getLong();
+        }
+        return new BlockSignatures(identity, segmentSize, blockSize, weak, strong);
+    }
+
+    /**
+     * Procura os blocos do arquivo do servidor na cópia antiga, em qualquer
+     * posição, copia os encontrados para o temporário part (já com o tamanho
+     * do arquivo do servidor) e os marca no diário. Retorna os bytes
+     * aproveitados.
+     */
+    long semear(FileChannel old, FileChannel part, TransferJournal journal) throws IOException {
+        BitSet found = new BitSet(count);
+        int lastLength = count == 0 ? 0 : (int) (identity.size - (long) (count - 1) * blockSize);
+        long reused = 0;
+
+        // o último bloco, se for menor, só é procurado no fim da cópia antiga
+        long oldSize = old.size();
+        if (lastLength > 0 && lastLength < blockSize && oldSize >= lastLength) {
+            ByteBuffer tail = ByteBuffer.allocate(lastLength);
+            while (tail.hasRemaining() && old.read(tail, oldSize - lastLength + tail.position()) >= 0) {
+                // lê o fim inteiro
+            }
+            byte[] bytes = tail.array();
+            int block = count - 1;
+            if (fraco(bytes, 0, lastLength) == weak[block] && forte(sha256, bytes, 0, lastLength) == strong[block]) {
+                reused += copiar(bytes, 0, block, lastLength, part, journal, found);
+            }
+        }
+
+        // checksum fraco deslizando byte a byte; o forte só é calculado quando o fraco coincide
+        byte[] buffer = new byte[Math.max(SCAN_BUFFER_SIZE, 2 * blockSize)];
+        long bufferStart = 0; // posição na cópia antiga de buffer[0]
+        int length = 0; // bytes válidos em buffer
+        int i = 0; // início da janela em buffer
+        int a = 0;
+        int b = 0;
+        boolean fresh = true; // a janela precisa ter o checksum calculado do zero
+        while (true) {
+            if (i + blockSize > length) {
+                // desloca o que resta para o início do buffer e lê a continuação
+                System.arraycopy(buffer, i, buffer, 0, length - i);
+                bufferStart += i;
+                length -= i;
+                i = 0;
+                ByteBuffer view = ByteBuffer.wrap(buffer, length, buffer.length - length);
+                while (view.hasRemaining() && old.read(view, bufferStart + view.position()) > 0) {
+                    // preenche o buffer
+                }
+                length = view.position();
+                if (blockSize > length) {
+                    break;
+                }
+            }
+            if (fresh) {
+                a = 0;
+                b = 0;
+                for (int k = 0; k < blockSize; k++) {
+                    int x = buffer[i + k] & 0xff;
+                    a += x;
+                    b += (blockSize - k) * x;
+                }
+                fresh = false;
+            }
+            int checksum = (b << 16) | (a & 0xffff);
+            long hash = 0;
+            boolean hashed = false;
+            boolean matched = false;
+            for (int block = heads[posicao(checksum)]; block >= 0; block = next[block]) {
+                if (weak[block] != checksum || found.get(block) || (block == count - 1 && lastLength < blockSize)) {
+                    continue;
+                }
+                if (!hashed) {
+                    hash = forte(sha256, buffer, i, blockSize);
+                    hashed = true;
+                }
+                if (hash == strong[block]) {
+                    reused += copiar(buffer, i, block, blockSize, part, journal, found);
+                    matched = true;
+                }
+            }
+            if (matched) {
+                i += blockSize;
+                fresh = true;
+            } else if (i + blockSize < length) {
+                int out = buffer[i] & 0xff;
+                int in = buffer[i + blockSize] & 0xff;
+                a += in - out;
+                b += a - blockSize * out;
+                i++;
+            } else {
+                i++; // a próxima janela depende da leitura seguinte
+                fresh = true;
+            }
+        }
+        return reused;
+    }
+
+    // grava o bloco encontrado na sua posição no temporário e marca os seus segmentos
+    private long copiar(byte[] bytes, int offset, int block, int length, FileChannel part,
+                        TransferJournal journal, BitSet found) throws IOException {
+        long position = (long) block * blockSize;
+        ByteBuffer data = ByteBuffer.wrap(bytes, offset, length);
+        while (data.hasRemaining()) {
+            part.write(data, position + data.position() - offset);
+        }
+        journal.marcarBytes(position, position + length);
+        found.set(block);
+        return length;
+    }
+
+    private int posicao(int checksum) {
+        return (checksum * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(heads.length));
+    }
+
+    // checksum fraco do rsync: soma dos bytes e soma ponderada pela distância ao fim do bloco, 16 bits cada
+    static int fraco(byte[] bytes, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int k = 0; k < length; k++) {
+            int x = bytes[offset + k] & 0xff;
+            a += x;
+            b += (length - k) * x;
+        }
+        return (b << 16) | (a & 0xffff);
+    }
+
+    private static long forte(MessageDigest sha256, byte[] bytes, int offset, int length) {
+        sha256.update(bytes, offset, length);
+        return ByteBuffer.wrap(sha256.digest()).getLong();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void escreverTudo(FileChannel out, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Conjunto de buffers diretos de tamanho fixo, fatiados de uma única região
+ * alocada na criação e reaproveitados por todos os datagramas, de modo que o
+ * caminho de envio e recepção não aloque memória. Se o conjunto se esgotar,
+ * nenhum buffer é alocado: o datagrama é descartado, como numa fila cheia, e
+ * o remetente o reenvia.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> free;
+
+    public BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(capacity);
+        ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * capacity);
+        for (int i = 0; i < capacity; i++) {
+            free.offer(slab.slice(i * bufferSize, bufferSize));
+        }
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    // retorna um buffer limpo com espaço para length bytes, ou null se não couberem num buffer do conjunto
+    // ou se ele estiver esgotado
+    public ByteBuffer acquire(int length) {
+        if (length > bufferSize) {
+            return null;
+        }
+        ByteBuffer buffer = free.poll();
+        return buffer == null ? null : buffer.clear();
+    }
+
+    // devolve ao conjunto um buffer obtido de acquire
+    public void release(ByteBuffer buffer) {
+        free.offer(buffer);
+    }
+}
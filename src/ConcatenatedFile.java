@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Vários arquivos vistos como um único {@link PositionalFile}, um depois do
+ * outro, para que um lote inteiro seja enviado e recebido como uma só
+ * transferência: arquivos pequenos dividem segmentos e os grandes seguem sem
+ * nenhuma troca de controle entre eles. Os arquivos são abertos sob demanda e
+ * no máximo MAX_OPEN ficam abertos ao mesmo tempo, de modo que um lote com
+ * milhares de arquivos não esgota os descritores.
+ */
+public class ConcatenatedFile implements PositionalFile {
+
+    private static final int MAX_OPEN = 64;
+
+    private final Path[] paths;
+    private final long[] starts; // posição de cada arquivo no lote, mais o tamanho total no fim
+    private final OpenOption[] options;
+    private final Map<Integer, FileChannel> open = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, FileChannel> eldest) {
+            if (size() <= MAX_OPEN) {
+                return false;
+            }
+            fechar(eldest.getValue());
+            return true;
+        }
+    };
+    private IOException closeFailure; // falha ao fechar um arquivo removido dos abertos
+
+    public ConcatenatedFile(Path[] paths, long[] sizes, OpenOption... options) {
+        this.paths = paths.clone();
+        this.options = options.clone();
+        this.starts = new long[paths.length + 1];
+        for (int i = 0; i < paths.length; i++) {
+            starts[i + 1] = starts[i] + sizes[i];
+        }
+    }
+
+    // arquivo que contém a posição; arquivos vazios nunca são escolhidos
+    private int arquivo(long at) {
+        int index = Arrays.binarySearch(starts, at);
+        if (index < 0) {
+            return -index - 2;
+        }
+        while (index + 1 < paths.length && starts[index + 1] == at) {
+            index++; // pula os arquivos vazios que começam na mesma posição
+        }
+        return index;
+    }
+
+    private synchronized FileChannel canal(int index) throws IOException {
+        if (closeFailure != null) {
+            IOException failure = closeFailure;
+            closeFailure = null;
+            throw failure;
+        }
+        FileChannel channel = open.get(index);
+        if (channel == null) {
+            channel = FileChannel.open(paths[index], options);
+            open.put(index, channel);
+        }
+        return channel;
+    }
+
+    private void fechar(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            closeFailure = e;
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long at) throws IOException {
+        if (at >= size()) {
+            return -1;
+        }
+        int total = 0;
+        while (dst.hasRemaining() && at < size()) {
+            int index = arquivo(at);
+            ByteBuffer piece = dst.duplicate();
+            piece.limit((int) Math.min(dst.limit(), dst.position() + starts[index + 1] - at));
+            int read = canal(index).read(piece, at - starts[index]);
+            if (read < 0) {
+                throw new IOException("Arquivo do lote menor que o anunciado: " + paths[index]);
+            }
+            dst.position(piece.position());
+            total += read;
+            at += read;
+            if (read == 0) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public int write(ByteBuffer src, long at) throws IOException {
+        int total = 0;
+        while (src.hasRemaining()) {
+            if (at >= size()) {
+                throw new IOException("Gravação além do fim do lote na posição " + at);
+            }
+            int index = arquivo(at);
+            ByteBuffer piece = src.duplicate();
+            piece.limit((int) Math.min(src.limit(), src.position() + starts[index + 1] - at));
+            int written = canal(index).write(piece, at - starts[index]);
+            src.position(piece.position());
+            total += written;
+            at += written;
+        }
+        return total;
+    }
+
+    @Override
+    public long size() {
+        return starts[paths.length];
+    }
+
+    // força apenas os arquivos ainda abertos; um lote interrompido não é retomado, então os já fechados
+    // não precisam de garantia de gravação antes do diário
+    @Override
+    public synchronized void force(boolean metaData) throws IOException {
+        for (FileChannel channel : open.values()) {
+            channel.force(metaData);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = closeFailure;
+        closeFailure = null;
+        for (FileChannel channel : open.values()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        open.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Controle de congestionamento do remetente. Decide quantos segmentos podem
+ * estar em trânsito e, opcionalmente, o intervalo entre envios, a partir das
+ * confirmações e perdas observadas pelo {@link FileSender}.
+ */
+public interface CongestionController {
+
+    int INITIAL_WINDOW = 10; // janela inicial em segmentos
+
+    // segmentos que podem estar enviados e ainda não confirmados
+    int congestionWindow();
+
+    // intervalo (ns) entre o envio de dois segmentos; 0 envia assim que a janela permitir
+    long pacingIntervalNanos();
+
+    // chamado a cada ACK que confirma segmentos novos; rttNanos é -1 quando não há amostra válida
+    void onAck(int ackedSegments, long rttNanos);
+
+    // chamado quando o segmento seq é dado como perdido, por SACK ou por expiração do temporizador
+    void onLoss(int seq, int nextSeqNum, boolean timeout);
+
+    // chamado quando um reenvio por SACK se mostra desnecessário: o original só estava atrasado
+    default void onSpuriousLoss() {
+    }
+
+    // escolhe o algoritmo pela propriedade udp.congestion (newreno ou bbr)
+    static CongestionController create(int maxWindow) {
+        String algorithm = System.getProperty("udp.congestion", "newreno");
+        switch (algorithm.toLowerCase()) {
+            case "newreno":
+                return new NewRenoController(maxWindow);
+            case "bbr":
+                return new BbrController(maxWindow);
+            default:
+                throw new IllegalArgumentException("Controle de congestionamento desconhecido: " + algorithm);
+        }
+    }
+}
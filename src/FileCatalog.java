@@ -0,0 +1,277 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+
+/**
+ * Catálogo em memória dos arquivos do diretório do servidor, ordenado pelo
+ * nome, com tamanho e data de modificação. O diretório é lido uma única vez;
+ * depois disso o catálogo é mantido por um {@link WatchService}, de modo que
+ * listar os arquivos não volta ao disco. Cada entrada guarda também a
+ * identidade do arquivo e o SHA-256 do conteúdo depois do primeiro envio
+ * completo e o arquivo temporário com as assinaturas dos seus blocos
+ * ({@link BlockSignatures}), reaproveitados enquanto o tamanho e a data não
+ * mudarem. A
+ * listagem é servida em páginas que cabem num segmento, a partir do último
+ * nome que o cliente recebeu e filtradas por prefixo.
+ */
+public class FileCatalog implements Closeable {
+
+    /** Arquivo do catálogo; a identidade e o resumo são preenchidos sob demanda. */
+    static final class Entry {
+        final long size;
+        final long modified; // ms desde a época
+        volatile FileIdentity identity;
+        volatile byte[] digest; // SHA-256 do arquivo inteiro, conhecido após um envio completo
+        volatile Signatures signatures; // assinaturas dos blocos, geradas no primeiro pedido
+
+        Entry(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /** Arquivo de assinaturas gerado para uma identidade e um tamanho de segmento. */
+    static final class Signatures {
+        final FileIdentity identity;
+        final int segmentSize;
+        final Path path;
+
+        Signatures(FileIdentity identity, int segmentSize, Path path) {
+            this.identity = identity;
+            this.segmentSize = segmentSize;
+            this.path = path;
+        }
+    }
+
+    private final Path directory;
+    private final NavigableMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+    private final WatchService watcher;
+    private final Thread thread;
+
+    public FileCatalog(Path directory) throws IOException {
+        this.directory = directory;
+        this.watcher = directory.getFileSystem().newWatchService();
+        directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        reler();
+        this.thread = new Thread(this::acompanhar, "catalogo");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // temporários de recepções em andamento e os seus diários não são listados
+    static boolean oculto(String fileName) {
+        return fileName.endsWith(".part") || fileName.endsWith(".part.journal") || fileName.endsWith(".part.journal.tmp");
+    }
+
+    public int tamanho() {
+        return entries.size();
+    }
+
+    Entry entrada(String fileName) {
+        return entries.get(fileName);
+    }
+
+    // lê o diretório inteiro; usado no início e quando eventos do WatchService se perdem
+    private void reler() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            Map<String, Entry> found = new ConcurrentSkipListMap<>();
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Entry entry = ler(file);
+                if (entry != null) {
+                    found.put(file.getFileName().toString(), entry);
+                }
+            }
+            for (String fileName : entries.keySet()) {
+                if (!found.containsKey(fileName)) {
+                    descartar(entries.remove(fileName));
+                }
+            }
+            found.forEach(this::guardar);
+        }
+    }
+
+    // atualiza a entrada de um único arquivo a partir do disco
+    private void atualizar(String fileName) {
+        Entry entry = ler(directory.resolve(fileName));
+        if (entry == null) {
+            descartar(entries.remove(fileName));
+        } else {
+            guardar(fileName, entry);
+        }
+    }
+
+    // mantém a entrada existente, com a identidade e o resumo, se o arquivo não mudou
+    private void guardar(String fileName, Entry entry) {
+        Entry current = entries.get(fileName);
+        if (current == null || current.size != entry.size || current.modified != entry.modified) {
+            descartar(entries.put(fileName, entry));
+        }
+    }
+
+    // apaga as assinaturas de uma entrada que saiu do catálogo
+    private static void descartar(Entry entry) {
+        Signatures signatures = entry != null ? entry.signatures : null;
+        if (signatures != null) {
+            apagar(signatures.path);
+        }
+    }
+
+    private static void apagar(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.err.println("Não foi possível apagar " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static Entry ler(Path file) {
+        if (oculto(file.getFileName().toString())) {
+            return null;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.isRegularFile()
+                    ? new Entry(attributes.size(), attributes.lastModifiedTime().toMillis()) : null;
+        } catch (IOException e) {
+            return null; // removido entre o evento e a leitura
+        }
+    }
+
+    // aplica os eventos do diretório até o catálogo ser fechado
+    private void acompanhar() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        reler();
+                    } else {
+                        atualizar(event.context().toString());
+                    }
+                }
+                if (!key.reset()) {
+                    System.err.println("Diretório do catálogo não está mais acessível: " + directory);
+                    return;
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // catálogo fechado
+        } catch (IOException e) {
+            System.err.println("Erro ao atualizar o catálogo de arquivos: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Identidade do arquivo aberto em file, reaproveitada da entrada do
+     * catálogo enquanto o tamanho e a data de modificação não mudarem.
+     */
+    FileIdentity identidade(String fileName, FileChannel file) throws IOException {
+        Path path = directory.resolve(fileName);
+        Entry entry = entries.get(fileName);
+        FileIdentity cached = entry != null ? entry.identity : null;
+        if (cached != null && cached.size == file.size()
+                && cached.modified == Files.getLastModifiedTime(path).toMillis()) {
+            return cached;
+        }
+        FileIdentity identity = FileIdentity.of(path, file);
+        if (entry != null && entry.size == identity.size && entry.modified == identity.modified) {
+            entry.identity = identity;
+        }
+        return identity;
+    }
+
+    // SHA-256 do arquivo inteiro, se já foi calculado para esta identidade
+    byte[] resumo(String fileName, FileIdentity identity) {
+        Entry entry = entries.get(fileName);
+        return entry != null && identity.equals(entry.identity) ? entry.digest : null;
+    }
+
+    void guardarResumo(String fileName, FileIdentity identity, byte[] digest) {
+        Entry entry = entries.get(fileName);
+        if (entry != null && identity.equals(entry.identity)) {
+            entry.digest = digest;
+        }
+    }
+
+    // arquivo de assinaturas desta identidade e deste segmento, se já foi gerado
+    Path assinaturas(String fileName, FileIdentity identity, int segmentSize) {
+        Entry entry = entries.get(fileName);
+        Signatures signatures = entry != null ? entry.signatures : null;
+        return signatures != null && signatures.identity.equals(identity) && signatures.segmentSize == segmentSize
+                ? signatures.path : null;
+    }
+
+    // guarda as assinaturas geradas, substituindo as anteriores; falso se o arquivo mudou
+    // e as assinaturas não pertencem mais ao catálogo
+    boolean guardarAssinaturas(String fileName, FileIdentity identity, int segmentSize, Path path) {
+        Entry entry = entries.get(fileName);
+        if (entry == null || !identity.equals(entry.identity)) {
+            return false;
+        }
+        Signatures previous = entry.signatures;
+        entry.signatures = new Signatures(identity, segmentSize, path);
+        if (previous != null) {
+            apagar(previous.path);
+        }
+        return true;
+    }
+
+    // manifesto dos arquivos cujo nome corresponde ao padrão glob, em ordem de nome
+    BatchManifest selecionar(String glob) {
+        PathMatcher matcher = directory.getFileSystem().getPathMatcher("glob:" + glob);
+        BatchManifest manifest = new BatchManifest();
+        for (Map.Entry<String, Entry> file : entries.entrySet()) {
+            if (matcher.matches(Path.of(file.getKey()))) {
+                manifest.adicionar(file.getKey(), file.getValue().size, file.getValue().modified);
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Escreve em page, a partir da posição e até o limite, as linhas dos
+     * arquivos com o prefixo informado que vêm depois de cursor (vazio na
+     * primeira página): nome, tamanho e data de modificação separados por
+     * tabulação. Retorna verdadeiro se restaram arquivos para a próxima página.
+     */
+    boolean listar(String prefix, String cursor, ByteBuffer page) {
+        NavigableMap<String, Entry> view = cursor.compareTo(prefix) < 0
+                ? entries.tailMap(prefix, true) : entries.tailMap(cursor, false);
+        for (Map.Entry<String, Entry> file : view.entrySet()) {
+            if (!file.getKey().startsWith(prefix)) {
+                return false; // em ordem, nenhum nome seguinte tem o prefixo
+            }
+            Entry entry = file.getValue();
+            byte[] line = (file.getKey() + '\t' + entry.size + '\t' + entry.modified + '\n')
+                    .getBytes(StandardCharsets.UTF_8);
+            if (line.length > page.remaining()) {
+                return true;
+            }
+            page.put(line);
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+        thread.interrupt();
+        entries.values().forEach(FileCatalog::descartar);
+    }
+}
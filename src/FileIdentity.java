@@ -0,0 +1,74 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Identidade do arquivo de origem de uma transferência: tamanho, data de
+ * modificação e uma impressão digital do início e do fim do conteúdo. O
+ * remetente a anuncia no FILE_INFO e o receptor só retoma um diário de
+ * recepção ({@link TransferJournal}) registrado com a mesma identidade.
+ */
+public final class FileIdentity {
+
+    static final int BYTES = 2 * Long.BYTES; // data de modificação e impressão digital; o tamanho segue no offset
+    private static final int SAMPLE_SIZE = 64 * 1024; // bytes lidos do início e do fim do arquivo
+
+    final long size;
+    final long modified; // ms desde a época
+    final long fingerprint;
+
+    FileIdentity(long size, long modified, long fingerprint) {
+        this.size = size;
+        this.modified = modified;
+        this.fingerprint = fingerprint;
+    }
+
+    // calcula a identidade do arquivo aberto em file, lendo apenas as amostras do início e do fim
+    static FileIdentity of(Path path, FileChannel file) throws IOException {
+        long size = file.size();
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer sample = ByteBuffer.allocate((int) Math.min(SAMPLE_SIZE, size));
+        for (long position : new long[] { 0, Math.max(0, size - SAMPLE_SIZE) }) {
+            sample.clear();
+            while (sample.hasRemaining() && file.read(sample, position + sample.position()) >= 0) {
+                // lê a amostra inteira
+            }
+            sample.flip();
+            digest.update(sample);
+        }
+        long fingerprint = ByteBuffer.wrap(digest.digest()).getLong();
+        return new FileIdentity(size, Files.getLastModifiedTime(path).toMillis(), fingerprint);
+    }
+
+    void escrever(ByteBuffer buffer, int index) {
+        buffer.putLong(index, modified);
+        buffer.putLong(index + Long.BYTES, fingerprint);
+    }
+
+    static FileIdentity ler(ByteBuffer buffer, int index, long size) {
+        return new FileIdentity(size, buffer.getLong(index), buffer.getLong(index + Long.BYTES));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof FileIdentity)) {
+            return false;
+        }
+        FileIdentity identity = (FileIdentity) other;
+        return size == identity.size && modified == identity.modified && fingerprint == identity.fingerprint;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(size) * 31 * 31 + Long.hashCode(modified) * 31 + Long.hashCode(fingerprint);
+    }
+}
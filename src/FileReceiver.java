@@ -0,0 +1,439 @@
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Recebe um arquivo pela janela deslizante gravando cada segmento direto no
+ * disco, na sua posição final, assim que ele chega. O arquivo é montado em um
+ * temporário ".part" e só é publicado com o nome definitivo ao final, de modo
+ * que a memória usada não depende do conteúdo do arquivo. No modo em lote,
+ * segmentos contíguos são acumulados e gravados com uma única chamada antes
+ * de cada confirmação, de modo que o que foi confirmado já está no arquivo.
+ * Nos fluxos paralelos cada receptor recebe apenas um intervalo do arquivo,
+ * gravando-o no mesmo temporário que os demais. O progresso é registrado num
+ * {@link TransferJournal}; uma recepção interrompida mantém o temporário e o
+ * diário, e a seguinte confirma o anúncio com os intervalos que ainda faltam.
+ * Um segmento com o CRC32C errado é descartado e pedido de novo com um NACK,
+ * e o SHA-256 do intervalo, calculado ao longo da recepção, é conferido com o
+ * do remetente antes de confirmar o fim. Segmentos comprimidos pelo
+ * remetente são descomprimidos antes de entrar no resumo e no arquivo.
+ */
+public class FileReceiver {
+
+    private static final String TEMP_SUFFIX = ".part";
+    private static final int LINGER_TIMEOUT = 5000; // espera (ms) pelo aviso de fim depois do último segmento
+    private static final int ACK_EVERY = 16; // segmentos em ordem confirmados por um único ACK
+    private static final int ACK_DELAY = 2; // espera (ms) máxima antes de confirmar segmentos pendentes
+    static final int ACK_HEADER_SIZE = Integer.BYTES; // janela de recepção anunciada, antes do mapa de SACK
+
+    private final FrameChannel canal;
+    private final int packetSize;
+    private final int windowSize;
+    private final int sackWords; // palavras de 64 bits do mapa de SACK: a janela inteira, até o tamanho do segmento
+    private ByteBuffer pendingWrite; // segmentos contíguos aguardando gravação no modo em lote
+    private long pendingPosition; // posição no arquivo do primeiro byte de pendingWrite
+    private TransferJournal journal; // segmentos já gravados, para retomar uma recepção interrompida
+    private RangeDigest digest; // resumo dos bytes do intervalo até o primeiro segmento que falta
+    private Inflater inflater; // criado no primeiro segmento comprimido
+    private ByteBuffer inflated; // segmento descomprimido
+    private byte[] dictionary; // início do intervalo, lido no primeiro segmento comprimido com ele
+    private TransferMetrics metrics;
+
+    public FileReceiver(FrameChannel canal, int packetSize, int windowSize) {
+        this.canal = canal;
+        this.packetSize = packetSize;
+        this.windowSize = windowSize;
+        this.sackWords = Math.min((windowSize + Long.SIZE - 1) / Long.SIZE, (packetSize - ACK_HEADER_SIZE) / Long.BYTES);
+    }
+
+    // recebe o arquivo anunciado por um FILE_INFO com a identidade informada, retomando
+    // uma recepção anterior do mesmo arquivo se houver um diário dela
+    public void receber(Path filePath, FileIdentity identity) throws IOException {
+        Path tempPath = temporario(filePath);
+        TransferJournal journal = TransferJournal.abrir(filePath, identity, packetSize);
+        try (PositionalFile file = PositionalFile.of(abrirTemporario(tempPath, journal, Math.max(0, identity.size)))) {
+            try {
+                receber(file, identity.size, 0, identity.size, journal);
+            } catch (IOException | RuntimeException e) {
+                try {
+                    journal.interromper(file);
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+        }
+
+        // publica o arquivo completo com o nome definitivo
+        publicar(tempPath, filePath);
+        journal.apagar();
+    }
+
+    // recebe apenas o intervalo [start, end) de um arquivo com o tamanho anunciado, gravando-o
+    // por posição num temporário já aberto, que pode receber outros intervalos ao mesmo tempo
+    public void receber(PositionalFile file, long fileSize, long start, long end, TransferJournal journal) throws IOException {
+        long totalPackets = (end - start + packetSize - 1) / packetSize;
+        if (fileSize < 0 || totalPackets > Integer.MAX_VALUE) {
+            canal.send(Frame.ERROR, 0, "Tamanho de arquivo não suportado: " + fileSize + " bytes");
+            throw new IOException("Tamanho de arquivo não suportado: " + fileSize + " bytes");
+        }
+
+        try {
+            this.journal = journal;
+            metrics = TransferMetrics.abrir("recepcao", canal.sessionId());
+            if (FileSender.BATCHED_IO) {
+                pendingWrite = ByteBuffer.allocateDirect(Math.max(packetSize, FileSender.IO_BATCH_BYTES));
+            }
+            receberSegmentos(file, fileSize, start, end, (int) totalPackets);
+            System.out.println("Intervalo recebido: " + metrics.descricao());
+        } finally {
+            metrics.close();
+            metrics = null;
+            pendingWrite = null;
+            this.journal = null;
+            digest = null;
+            dictionary = null;
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+                inflated = null;
+            }
+        }
+    }
+
+    static Path temporario(Path filePath) {
+        return filePath.resolveSibling(filePath.getFileName() + TEMP_SUFFIX);
+    }
+
+    // reabre o temporário de uma recepção retomada ou cria um novo; os segmentos que chegam fora
+    // de ordem são relidos dele para o resumo
+    static FileChannel abrirTemporario(Path tempPath, TransferJournal journal, long fileSize) throws IOException {
+        if (journal.retomado()) {
+            return FileChannel.open(tempPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return criarTemporario(tempPath, fileSize);
+    }
+
+    // cria o temporário já com o tamanho final do arquivo, para as gravações posicionais
+    static FileChannel criarTemporario(Path tempPath, long fileSize) throws IOException {
+        FileChannel file = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            if (fileSize > 0) {
+                file.write(ByteBuffer.wrap(new byte[1]), fileSize - 1);
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        return file;
+    }
+
+    static void publicar(Path tempPath, Path filePath) throws IOException {
+        Files.move(tempPath, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void receberSegmentos(PositionalFile file, long fileSize, long start, long end, int numPackets) throws IOException {
+        // repetição seletiva: marca cada segmento já gravado no disco, inclusive numa recepção anterior
+        BitSet received = new BitSet(numPackets);
+        long firstSegment = start / packetSize;
+        for (int seq = 0; seq < numPackets; seq++) {
+            if (journal.contem(firstSegment + seq)) {
+                received.set(seq);
+            }
+        }
+        if (!received.isEmpty()) {
+            System.out.println("Retomando: " + received.cardinality() + " de " + numPackets + " pacotes já recebidos.");
+        }
+        digest = new RangeDigest(start);
+
+        // confirma o anúncio do arquivo com os intervalos que faltam
+        confirmarAnuncio(received, numPackets, fileSize);
+
+        // confirma em lote: um ACK a cada ackEvery segmentos ou após ACK_DELAY ms sem novos pacotes
+        int ackEvery = Math.max(1, Math.min(ACK_EVERY, windowSize / 2));
+        int pendingAcks = 0;
+        int idleTimeout = numPackets == 0 ? LINGER_TIMEOUT : 0;
+
+        int windowBase = received.nextClearBit(0); // primeiro segmento ainda não recebido
+        int highestReceived = received.length() - 1; // maior número de sequência já recebido
+        if (windowBase >= numPackets) {
+            idleTimeout = LINGER_TIMEOUT;
+        }
+        avancarResumo(file, start, end, windowBase);
+
+        // recebe os quadros até o remetente confirmar que todos os segmentos foram entregues
+        while (true) {
+            int type = canal.poll(pendingAcks > 0 ? ACK_DELAY : idleTimeout);
+            if (type == Frame.TIMEOUT) {
+                if (pendingAcks > 0) {
+                    enviarSack(file, received, windowBase, highestReceived);
+                    pendingAcks = 0;
+                    continue;
+                }
+                if (windowBase >= numPackets) {
+                    // sem o aviso de fim não há resumo para conferir; o diário guarda os segmentos para a próxima tentativa
+                    throw new SocketTimeoutException("O aviso de fim com o resumo do remetente não chegou.");
+                }
+                throw new SocketTimeoutException("Tempo de espera esgotado.");
+            }
+
+            switch (type) {
+                case Frame.DATA:
+                    break;
+                case Frame.CORRUPTED:
+                    pedirReenvio(received, start, end);
+                    continue;
+                case Frame.FILE_INFO:
+                    // a confirmação do anúncio se perdeu
+                    confirmarAnuncio(received, numPackets, fileSize);
+                    continue;
+                case Frame.FIN:
+                    if (windowBase >= numPackets) {
+                        gravarPendentes(file);
+                        conferirResumo(file, end, firstSegment, numPackets);
+                        canal.send(Frame.FIN_ACK, numPackets);
+                        return;
+                    }
+                    continue;
+                case Frame.ERROR:
+                    throw new IOException(canal.payloadString());
+                default:
+                    continue;
+            }
+
+            // descarta segmentos desalinhados, com tamanho inesperado ou fora do intervalo e da janela de recepção;
+            // o tamanho de um segmento comprimido é conferido ao descomprimi-lo
+            long offset = canal.offset();
+            int length = canal.payloadLength();
+            metrics.pacoteRecebido(length);
+            boolean compressed = (canal.flags() & Frame.FLAG_COMPRESSED) != 0;
+            if (offset < start || offset >= end || (offset - start) % packetSize != 0
+                    || (!compressed && length != Math.min(packetSize, end - offset))) {
+                continue;
+            }
+            int packetSeqNum = (int) ((offset - start) / packetSize);
+            if (packetSeqNum >= windowBase + windowSize) {
+                continue;
+            }
+
+            // o remetente pede confirmação imediata quando a sua janela se fecha ou ao retransmitir
+            boolean ackNow = (canal.flags() & Frame.FLAG_ACK_NOW) != 0;
+            if (received.get(packetSeqNum)) {
+                // duplicata: o ACK anterior se perdeu, então confirma imediatamente
+                metrics.duplicado();
+                ackNow = true;
+            } else {
+                // grava o segmento na sua posição final, apenas na primeira vez que ele chega
+                ByteBuffer packetBuffer = canal.received();
+                packetBuffer.limit(Frame.HEADER_SIZE + length).position(Frame.HEADER_SIZE);
+                ByteBuffer segment = compressed
+                        ? descomprimir(packetBuffer, (int) Math.min(packetSize, end - offset), file, start, received)
+                        : packetBuffer;
+                if (segment == null) {
+                    packetBuffer.clear();
+                    pedirReenvio(received, start, end);
+                    continue;
+                }
+                metrics.entregue(segment.remaining());
+                digest.atualizar(offset, segment);
+                gravarSegmento(file, offset, segment);
+                packetBuffer.clear();
+                received.set(packetSeqNum);
+                highestReceived = Math.max(highestReceived, packetSeqNum);
+
+                // segmentos fora de ordem abrem ou fecham lacunas: o remetente precisa saber logo
+                boolean inOrder = packetSeqNum == windowBase && highestReceived == packetSeqNum;
+                windowBase = received.nextClearBit(windowBase);
+                avancarResumo(file, start, end, windowBase);
+                if (windowBase >= numPackets) {
+                    // aguarda o aviso de fim apenas por um tempo limitado
+                    idleTimeout = LINGER_TIMEOUT;
+                }
+                pendingAcks++;
+                ackNow |= !inOrder || pendingAcks >= ackEvery || windowBase >= numPackets;
+            }
+
+            if (ackNow) {
+                enviarSack(file, received, windowBase, highestReceived);
+                pendingAcks = 0;
+            }
+        }
+    }
+
+    // descomprime a carga útil de um segmento; null se ela não resultar em exatamente expected bytes
+    // ou pedir um dicionário diferente do início do intervalo
+    private ByteBuffer descomprimir(ByteBuffer payload, int expected, PositionalFile file, long start,
+                                    BitSet received) throws IOException {
+        if (inflater == null) {
+            inflater = new Inflater();
+            inflated = ByteBuffer.allocateDirect(packetSize + 1);
+        }
+        inflater.reset();
+        inflater.setInput(payload);
+        inflated.clear().limit(expected + 1); // um byte a mais revela um segmento maior que o esperado
+        try {
+            while (!inflater.finished() && inflated.hasRemaining()) {
+                if (inflater.inflate(inflated) > 0) {
+                    continue;
+                }
+                if (!inflater.needsDictionary()) {
+                    if (inflater.needsInput()) {
+                        break;
+                    }
+                } else if (dicionario(file, start, received)) {
+                    inflater.setDictionary(dictionary); // recusa um dicionário com outro Adler-32
+                } else {
+                    return null;
+                }
+            }
+        } catch (DataFormatException | IllegalArgumentException e) {
+            return null;
+        }
+        if (!inflater.finished() || inflated.position() != expected) {
+            return null;
+        }
+        return inflated.flip();
+    }
+
+    // lê o início do intervalo, que o remetente só usa como dicionário depois de vê-lo confirmado;
+    // false se ainda falta algum segmento dele
+    private boolean dicionario(PositionalFile file, long start, BitSet received) throws IOException {
+        if (dictionary != null) {
+            return true;
+        }
+        if (received.nextClearBit(0) < (SegmentCompressor.DICTIONARY_SIZE + packetSize - 1) / packetSize) {
+            return false;
+        }
+        gravarPendentes(file);
+        ByteBuffer buffer = ByteBuffer.allocate(SegmentCompressor.DICTIONARY_SIZE);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, start + buffer.position()) < 0) {
+                throw new IOException("Fim inesperado do arquivo ao ler o dicionário da compressão.");
+            }
+        }
+        dictionary = buffer.array();
+        return true;
+    }
+
+    // pede com um NACK o segmento que chegou corrompido, se o offset recebido ainda indicar um segmento que falta
+    private void pedirReenvio(BitSet received, long start, long end) throws IOException {
+        metrics.corrompido();
+        long offset = canal.offset();
+        if (offset >= start && offset < end && (offset - start) % packetSize == 0
+                && !received.get((int) ((offset - start) / packetSize))) {
+            if (TransferMetrics.TRACE) {
+                System.out.println("Pacote #" + (offset - start) / packetSize + " corrompido. Pedindo reenvio.");
+            }
+            canal.send(Frame.NACK, offset);
+        }
+    }
+
+    // alimenta o resumo até o primeiro segmento que falta, relendo do disco os que chegaram fora de ordem
+    private void avancarResumo(PositionalFile file, long start, long end, int windowBase) throws IOException {
+        long frontier = Math.min(end, start + (long) windowBase * packetSize);
+        if (frontier > digest.posicao()) {
+            gravarPendentes(file);
+            digest.lerAte(file, frontier);
+        }
+    }
+
+    // confere o resumo do intervalo com o que o remetente enviou no FIN; se diferirem, o intervalo é
+    // desmarcado no diário para ser recebido de novo
+    private void conferirResumo(PositionalFile file, long end, long firstSegment, int numPackets) throws IOException {
+        digest.lerAte(file, end);
+        byte[] expected = new byte[RangeDigest.BYTES];
+        if (canal.payloadLength() == RangeDigest.BYTES) {
+            canal.received().get(Frame.HEADER_SIZE, expected);
+        }
+        if (!MessageDigest.isEqual(expected, digest.concluir())) {
+            journal.desmarcar(firstSegment, firstSegment + numPackets);
+            canal.send(Frame.ERROR, 0, "O resumo SHA-256 do arquivo recebido não confere.");
+            throw new IOException("O resumo SHA-256 do arquivo recebido não confere com o do remetente.");
+        }
+    }
+
+    // responde ao FILE_INFO com os intervalos [início, fim) de segmentos que faltam, até onde cabem num
+    // segmento; se não couberem todos, o último intervalo se estende até o fim
+    private void confirmarAnuncio(BitSet received, int numPackets, long fileSize) throws IOException {
+        ByteBuffer reply = canal.sendBuffer();
+        int maxRanges = Math.max(1, packetSize / (2 * Integer.BYTES));
+        int ranges = 0;
+        int from = received.nextClearBit(0);
+        while (from < numPackets) {
+            int next = received.nextSetBit(from);
+            int to = next < 0 || ranges == maxRanges - 1 ? numPackets : Math.min(numPackets, next);
+            reply.putInt(Frame.HEADER_SIZE + ranges * 2 * Integer.BYTES, from);
+            reply.putInt(Frame.HEADER_SIZE + ranges * 2 * Integer.BYTES + Integer.BYTES, to);
+            ranges++;
+            from = received.nextClearBit(to);
+        }
+        canal.send(Frame.FILE_INFO_ACK, 0, fileSize, ranges * 2 * Integer.BYTES);
+    }
+
+    // grava a carga útil em segment na posição offset; no modo em lote, acumula segmentos contíguos
+    private void gravarSegmento(PositionalFile file, long offset, ByteBuffer segment) throws IOException {
+        if (pendingWrite != null) {
+            if (pendingWrite.position() > 0 && (offset != pendingPosition + pendingWrite.position()
+                    || segment.remaining() > pendingWrite.remaining())) {
+                gravarPendentes(file);
+            }
+            if (pendingWrite.position() == 0) {
+                pendingPosition = offset;
+            }
+            pendingWrite.put(segment);
+            return;
+        }
+        long start = offset - segment.position();
+        while (segment.hasRemaining()) {
+            file.write(segment, start + segment.position());
+        }
+        journal.marcarBytes(offset, start + segment.position());
+    }
+
+    // grava de uma vez os segmentos acumulados no modo em lote
+    private void gravarPendentes(PositionalFile file) throws IOException {
+        if (pendingWrite == null || pendingWrite.position() == 0) {
+            return;
+        }
+        pendingWrite.flip();
+        while (pendingWrite.hasRemaining()) {
+            file.write(pendingWrite, pendingPosition + pendingWrite.position());
+        }
+        journal.marcarBytes(pendingPosition, pendingPosition + pendingWrite.limit());
+        pendingWrite.clear();
+    }
+
+    // envia um SACK: o offset do quadro leva o ACK cumulativo (próximo segmento esperado) e a carga
+    // útil a janela de recepção, seguida do mapa dos segmentos recebidos além do ACK cumulativo;
+    // os segmentos confirmados são gravados antes. A janela anunciada desconta os datagramas que
+    // chegaram e ainda aguardam leitura, de modo que o remetente desacelera quando o receptor se atrasa
+    private void enviarSack(PositionalFile file, BitSet received, int windowBase, int highestReceived) throws IOException {
+        gravarPendentes(file);
+        journal.gravarPeriodicamente(file);
+        int words = 0;
+        if (highestReceived > windowBase) {
+            words = Math.min(sackWords, (highestReceived - windowBase - 1) / Long.SIZE + 1);
+        }
+        ByteBuffer ackBuffer = canal.sendBuffer();
+        ackBuffer.putInt(Frame.HEADER_SIZE, Math.max(0, windowSize - canal.pendentes()));
+        for (int word = 0; word < words; word++) {
+            long bits = 0;
+            int first = windowBase + 1 + word * Long.SIZE;
+            for (int seq = received.nextSetBit(first); seq >= 0 && seq < first + Long.SIZE; seq = received.nextSetBit(seq + 1)) {
+                bits |= 1L << (seq - first);
+            }
+            ackBuffer.putLong(Frame.HEADER_SIZE + ACK_HEADER_SIZE + word * Long.BYTES, bits);
+        }
+        canal.send(Frame.SACK, 0, windowBase, ACK_HEADER_SIZE + words * Long.BYTES);
+    }
+}
@@ -0,0 +1,565 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Envia um arquivo pela janela deslizante lendo cada segmento do disco sob
+ * demanda, de modo que a memória usada não depende do tamanho do arquivo.
+ * Usado tanto pelo download no servidor quanto pelo upload no cliente. No
+ * modo em lote (padrão, -Dudp.io=batched) os segmentos novos são lidos do
+ * arquivo em blocos, com uma chamada para vários segmentos; -Dudp.io=plain
+ * lê um segmento por chamada. Nos fluxos paralelos cada remetente envia
+ * apenas um intervalo do arquivo, com as posições absolutas nos quadros. A
+ * confirmação do anúncio traz os intervalos que faltam ao receptor, e os
+ * demais segmentos, já recebidos numa transferência interrompida, não são
+ * reenviados. O SHA-256 do intervalo é calculado à medida que os segmentos
+ * novos são lidos e vai no FIN; um NACK do receptor reenvia na hora um
+ * segmento que chegou corrompido. Com a compressão negociada, cada segmento
+ * passa pelo {@link SegmentCompressor} depois de entrar no resumo.
+ */
+public class FileSender {
+
+    private static final int MAX_BACKOFF = 10; // expirações do segmento mais antigo, sem nenhum ACK novo, antes de desistir do receptor
+    private static final int DUP_THRESHOLD = 3; // segmentos confirmados acima de uma lacuna para suspeitar da sua perda
+    private static final int MAX_REORDER_QUARTERS = 4; // janela de reordenação máxima, em quartos do SRTT
+    private static final long MIN_REORDER_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int MAX_BURST = 4; // segmentos que o espaçamento permite enviar de uma vez para compensar atrasos
+    private static final long PACING_SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(2); // atraso compensável, pela resolução do temporizador
+    static final boolean BATCHED_IO = !"plain".equalsIgnoreCase(System.getProperty("udp.io", "batched"));
+    static final int IO_BATCH_BYTES = 256 * 1024; // bytes lidos ou gravados de uma vez no modo em lote
+
+    private final FrameChannel canal;
+    private final int packetSize;
+    private final int windowSize; // limite superior da janela, seja qual for o controle de congestionamento
+
+    // estado da transferência em andamento
+    private PositionalFile file;
+    private FileIdentity identity;
+    private BlockCache cache; // blocos compartilhados com outros remetentes; null para ler do disco
+    private Object cacheOrigin; // origem do arquivo no cache
+    private ByteBuffer readAhead; // segmentos novos lidos de uma vez no modo em lote
+    private int readAheadFirst; // primeiro segmento presente no readAhead
+    private int readAheadCount; // segmentos presentes no readAhead
+    private long rangeStart; // posição do segmento 0 no arquivo
+    private long rangeEnd; // fim (exclusivo) do intervalo enviado
+    private int numPackets;
+    private RangeDigest digest; // resumo dos bytes do intervalo até o próximo segmento novo; null se já conhecido
+    private byte[] knownDigest; // resumo do intervalo já conhecido, que dispensa o cálculo
+    private byte[] lastDigest; // resumo enviado no FIN do último intervalo
+    private SegmentCompressor compressor; // null sem compressão negociada
+    private BitSet acked; // segmentos confirmados pelo receptor
+    private BitSet present; // segmentos que o receptor já tinha antes desta transferência
+    private BitSet repaired; // lacunas já reenviadas a partir de um SACK
+    private BitSet retransmitted; // segmentos reenviados, que não geram amostras de RTT (algoritmo de Karn)
+    private long[] sentAt; // instante do último envio, indexado por seq % windowSize
+    private long nextDeadline; // expiração mais próxima entre os segmentos pendentes
+    private int base; // base da janela
+    private int nextSeqNum; // próximo número de sequência a ser enviado
+    private int inFlight; // segmentos enviados e ainda não confirmados
+    private int rightEdge; // limite anunciado pelo receptor: ACK cumulativo + janela de recepção
+    private long nextSendAt; // instante liberado pelo espaçamento para o próximo segmento novo
+    private long releasedAt; // instante liberado pelo escalonador de banda para o próximo segmento novo
+    private int highestSacked; // maior segmento confirmado pelo receptor
+    private long lossCheckAt; // quando a lacuna mais antiga ainda dentro da janela de reordenação deixa de estar
+    private int reorderQuarters; // janela de reordenação, em quartos do SRTT; cresce a cada reenvio espúrio
+    private long minRtt; // menor amostra de RTT da transferência
+    private int stalledSeq; // segmento mais antigo que expirou por último
+    private int stalledExpirations; // expirações seguidas de stalledSeq sem que nada novo fosse confirmado
+    private CongestionController congestion;
+    private TransferMetrics metrics;
+    private SendScheduler scheduler; // null sem escalonador de banda
+    private InetAddress client; // endereço do receptor no escalonador
+    private SendScheduler.Client share; // parcela de banda do receptor durante o envio
+    private final RttEstimator rtt = new RttEstimator();
+
+    public FileSender(FrameChannel canal, int packetSize, int windowSize) {
+        this.canal = canal;
+        this.packetSize = packetSize;
+        this.windowSize = windowSize;
+    }
+
+    // envia o arquivo anunciando-o com o nome informado; um ERROR do receptor interrompe o envio
+    public void enviar(Path filePath, String fileName) throws IOException {
+        try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            FileIdentity identity = FileIdentity.of(filePath, file);
+            enviar(PositionalFile.of(file), fileName, identity, 0, identity.size);
+        }
+    }
+
+    // o próximo envio usa este resumo do intervalo, já calculado num envio anterior do mesmo conteúdo,
+    // em vez de calculá-lo; se o conteúdo tiver mudado, o receptor recusa o resumo no fim
+    public void usarResumo(byte[] digest) {
+        knownDigest = digest;
+    }
+
+    // os próximos envios, que devem ser do arquivo em filePath, leem-no pelo cache de blocos,
+    // inclusive as retransmissões
+    public void usarCache(BlockCache cache, Path filePath) throws IOException {
+        this.cacheOrigin = cache == null ? null : BlockCache.origem(filePath);
+        this.cache = cache;
+    }
+
+    // os próximos envios respeitam a parcela de banda do receptor no escalonador, dividida com os
+    // outros envios para o mesmo endereço
+    public void usarEscalonador(SendScheduler scheduler, InetAddress client) {
+        this.scheduler = scheduler;
+        this.client = client;
+    }
+
+    // resumo do último intervalo enviado por completo
+    public byte[] resumo() {
+        return lastDigest;
+    }
+
+    // envia apenas o intervalo [start, end) de um arquivo já aberto, que pode ser lido por outros
+    // remetentes ao mesmo tempo; o anúncio informa a identidade do arquivo inteiro
+    public void enviar(PositionalFile file, String fileName, FileIdentity identity, long start, long end) throws IOException {
+        long fileSize = identity.size;
+        try {
+            this.file = file;
+            this.identity = identity;
+            rangeStart = start;
+            rangeEnd = end;
+            long totalPackets = (end - start + packetSize - 1) / packetSize;
+            if (totalPackets > Integer.MAX_VALUE) {
+                throw new IOException("Arquivo grande demais para o número de sequência: " + fileSize + " bytes");
+            }
+            numPackets = (int) totalPackets;
+            metrics = TransferMetrics.abrir("envio", canal.sessionId());
+            share = scheduler == null ? null : scheduler.abrir(client);
+            if (BATCHED_IO) {
+                readAhead = ByteBuffer.allocateDirect(Math.max(1, IO_BATCH_BYTES / packetSize) * packetSize);
+                readAheadCount = 0;
+            }
+            compressor = canal.compressao() ? new SegmentCompressor(packetSize) : null;
+
+            // anunciar identidade, nome e tamanho do arquivo; a confirmação fornece a primeira amostra de RTT
+            canal.request(Frame.FILE_INFO, 0, fileSize, canal.escreverAnuncio(identity, fileName), rtt, Frame.FILE_INFO_ACK);
+            System.out.println("ACK recebido para o anúncio do arquivo (" + fileSize + " bytes)");
+            lerFaltantes();
+
+            digest = knownDigest == null ? new RangeDigest(start) : null;
+            enviarSegmentos();
+            encerrar();
+            System.out.println("Intervalo enviado: " + metrics.descricao());
+        } finally {
+            if (metrics != null) {
+                metrics.close();
+                metrics = null;
+            }
+            if (share != null) {
+                share.close();
+                share = null;
+            }
+            this.file = null;
+            this.identity = null;
+            this.readAhead = null;
+            this.digest = null;
+            this.compressor = null;
+        }
+    }
+
+    // marca como confirmados os segmentos fora dos intervalos que faltam ao receptor
+    private void lerFaltantes() {
+        acked = new BitSet(numPackets);
+        acked.set(0, numPackets);
+        ByteBuffer reply = canal.received();
+        int ranges = canal.payloadLength() / (2 * Integer.BYTES);
+        for (int i = 0; i < ranges; i++) {
+            int index = Frame.HEADER_SIZE + i * 2 * Integer.BYTES;
+            int from = Math.max(0, reply.getInt(index));
+            int to = Math.min(numPackets, reply.getInt(index + Integer.BYTES));
+            if (from < to) {
+                acked.clear(from, to);
+            }
+        }
+        present = acked.isEmpty() ? new BitSet() : (BitSet) acked.clone();
+        if (!present.isEmpty()) {
+            System.out.println("Retomando: o receptor já tem " + present.cardinality() + " de " + numPackets + " pacotes.");
+        }
+    }
+
+    // repetição seletiva: cada segmento tem o seu próprio temporizador de retransmissão
+    private void enviarSegmentos() throws IOException {
+        // só crescem com as perdas: sem elas a transferência não aloca nada proporcional ao arquivo
+        repaired = new BitSet();
+        retransmitted = new BitSet();
+        sentAt = new long[windowSize];
+        nextDeadline = Long.MAX_VALUE;
+        base = acked.nextClearBit(0);
+        nextSeqNum = base;
+        inFlight = 0;
+        rightEdge = base + CongestionController.INITIAL_WINDOW;
+        nextSendAt = System.nanoTime();
+        releasedAt = nextSendAt;
+        highestSacked = -1;
+        lossCheckAt = Long.MAX_VALUE;
+        reorderQuarters = 1;
+        minRtt = Long.MAX_VALUE;
+        stalledSeq = -1;
+        stalledExpirations = 0;
+        congestion = CongestionController.create(windowSize);
+        prepararDicionario();
+
+        while (base < numPackets) {
+            // enviar pacotes novos enquanto as janelas de congestionamento e do receptor permitirem
+            long now = System.nanoTime();
+            while (podeEnviar() && now >= nextSendAt && now >= releasedAt) {
+                // o último segmento antes de a janela se fechar pede confirmação imediata
+                int flags = podeEnviar(nextSeqNum + 1, inFlight + 1) ? 0 : Frame.FLAG_ACK_NOW;
+                enviarSegmento(nextSeqNum, flags);
+                if (TransferMetrics.TRACE) {
+                    System.out.println("Enviando pacote #" + nextSeqNum);
+                }
+                nextSeqNum = acked.nextClearBit(nextSeqNum + 1); // pula os segmentos que o receptor já tinha
+                inFlight++;
+                long interval = congestion.pacingIntervalNanos();
+                if (interval > 0) {
+                    nextSendAt = Math.max(nextSendAt, now - Math.max(MAX_BURST * interval, PACING_SLACK_NANOS)) + interval;
+                }
+            }
+
+            // aguardar ACK até a expiração do temporizador mais próximo ou a liberação do próximo envio
+            long deadline = Math.min(nextDeadline, lossCheckAt);
+            long wakeAt = podeEnviar() ? Math.min(deadline, Math.max(nextSendAt, releasedAt)) : deadline;
+            long waitNanos = wakeAt - now;
+            if (waitNanos > 0) {
+                switch (canal.poll((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)))) {
+                    case Frame.TIMEOUT:
+                        // algum temporizador expirou ou o espaçamento liberou um envio
+                        break;
+                    case Frame.SACK:
+                        processarAck();
+                        continue;
+                    case Frame.NACK:
+                        processarNack();
+                        continue;
+                    case Frame.ERROR:
+                        throw new IOException(canal.payloadString());
+                    default:
+                        // anúncios repetidos e quadros atrasados de controle
+                        continue;
+                }
+            }
+            if (System.nanoTime() >= lossCheckAt) {
+                repararLacunas();
+            }
+            if (System.nanoTime() >= nextDeadline) {
+                retransmitirExpirados();
+            }
+        }
+    }
+
+    private boolean podeEnviar() {
+        return podeEnviar(nextSeqNum, inFlight);
+    }
+
+    private boolean podeEnviar(int seq, int segmentsInFlight) {
+        return seq < numPackets
+                && segmentsInFlight < congestion.congestionWindow()
+                && seq < rightEdge
+                && seq < base + windowSize;
+    }
+
+    // aplica um ACK cumulativo com o mapa de confirmações seletivas (SACK) que o segue
+    private void processarAck() throws IOException {
+        ByteBuffer ackBuffer = canal.received();
+        int ackLength = canal.payloadLength();
+        long cumulativeOffset = canal.offset();
+        if (ackLength < FileReceiver.ACK_HEADER_SIZE || cumulativeOffset < 0 || cumulativeOffset > nextSeqNum) {
+            return;
+        }
+        int cumulativeAck = (int) cumulativeOffset;
+        if (TransferMetrics.TRACE) {
+            System.out.println("ACK recebido até o pacote #" + (cumulativeAck - 1));
+        }
+        rightEdge = cumulativeAck + ackBuffer.getInt(Frame.HEADER_SIZE);
+
+        // tudo abaixo do ACK cumulativo foi recebido
+        long now = System.nanoTime();
+        int newlyAcked = 0;
+        long newlyAckedBytes = 0;
+        int latestClean = -1; // último segmento confirmado que não foi reenviado, a única amostra de RTT válida
+        for (int seq = acked.nextClearBit(base); seq < cumulativeAck; seq = acked.nextClearBit(seq + 1)) {
+            newlyAcked++;
+            newlyAckedBytes += tamanho(seq);
+            latestClean = confirmado(seq, now, latestClean);
+        }
+        if (cumulativeAck > base) {
+            acked.set(base, cumulativeAck);
+        }
+
+        // cada bit i do mapa confirma o segmento cumulativeAck + 1 + i
+        int words = (ackLength - FileReceiver.ACK_HEADER_SIZE) / Long.BYTES;
+        for (int word = 0; word < words; word++) {
+            long bits = ackBuffer.getLong(Frame.HEADER_SIZE + FileReceiver.ACK_HEADER_SIZE + word * Long.BYTES);
+            while (bits != 0) {
+                int seq = cumulativeAck + 1 + word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+                if (seq < nextSeqNum) {
+                    if (!acked.get(seq)) {
+                        acked.set(seq);
+                        newlyAcked++;
+                        newlyAckedBytes += tamanho(seq);
+                        latestClean = confirmado(seq, now, latestClean);
+                    }
+                    highestSacked = Math.max(highestSacked, seq);
+                }
+                bits &= bits - 1;
+            }
+        }
+        base = acked.nextClearBit(base); // atualizar a base da janela
+        prepararDicionario();
+
+        if (newlyAcked > 0) {
+            inFlight -= newlyAcked;
+            stalledExpirations = 0;
+            // só uma confirmação sem ambiguidade desfaz o recuo do RTO (algoritmo de Karn); se apenas
+            // reenvios foram confirmados, o recuo fica até o primeiro segmento novo ser confirmado
+            long rttSample = -1;
+            if (latestClean >= 0) {
+                rttSample = now - sentAt[latestClean % windowSize];
+                rtt.sample(rttSample);
+                minRtt = Math.min(minRtt, rttSample);
+                metrics.rtt(rttSample);
+            }
+            congestion.onAck(newlyAcked, rttSample);
+            metrics.entregue(newlyAckedBytes);
+            metrics.janela(congestion.congestionWindow());
+        }
+
+        repararLacunas();
+    }
+
+    // registra a confirmação de seq e retorna o último segmento confirmado sem reenvio, que passa a ser seq
+    // se ele nunca foi reenviado. Um reparo confirmado antes de meio RTT mínimo foi o original que chegou
+    // atrasado, não o reenvio: a redução da janela de congestionamento é desfeita e a janela de reordenação
+    // cresce para não repetir o engano
+    private int confirmado(int seq, long now, int latestClean) {
+        if (!retransmitted.get(seq)) {
+            return seq;
+        }
+        if (repaired.get(seq) && minRtt != Long.MAX_VALUE && now - sentAt[seq % windowSize] < minRtt / 2) {
+            reorderQuarters = Math.min(MAX_REORDER_QUARTERS, reorderQuarters + 1);
+            congestion.onSpuriousLoss();
+            metrics.janela(congestion.congestionWindow());
+            if (TransferMetrics.TRACE) {
+                System.out.println("Reenvio espúrio do pacote #" + seq + ". Janela de reordenação: "
+                        + reorderQuarters + "/4 do SRTT");
+            }
+        }
+        return latestClean;
+    }
+
+    // o receptor descartou um segmento corrompido: reenvia-o já, sem tratar como congestionamento
+    private void processarNack() throws IOException {
+        long offset = canal.offset() - rangeStart;
+        if (offset < 0 || offset % packetSize != 0 || offset / packetSize >= nextSeqNum) {
+            return;
+        }
+        int seq = (int) (offset / packetSize);
+        if (!acked.get(seq)) {
+            enviarSegmento(seq, Frame.FLAG_ACK_NOW);
+            retransmitted.set(seq);
+            metrics.retransmissao(false);
+            if (TransferMetrics.TRACE) {
+                System.out.println("Pacote #" + seq + " chegou corrompido. Reenviando.");
+            }
+        }
+    }
+
+    // reenvia as lacunas que o SACK mostra terem sido ultrapassadas por DUP_THRESHOLD segmentos posteriores,
+    // como no RACK: uma lacuna só é dada como perdida quando já passou do seu ACK esperado, um SRTT depois
+    // do envio, por mais que a janela de reordenação, de modo que o atraso variável da rede não gere reenvios;
+    // as que ainda estão dentro dela são conferidas de novo em lossCheckAt
+    private void repararLacunas() throws IOException {
+        lossCheckAt = Long.MAX_VALUE;
+        long now = System.nanoTime();
+        long srtt = Math.max(0, rtt.srttNanos());
+        long lostAfter = srtt + Math.max(MIN_REORDER_NANOS, srtt * reorderQuarters / 4);
+        int sackedAbove = 0;
+        for (int seq = Math.min(highestSacked, nextSeqNum - 1); seq >= base; seq--) {
+            if (acked.get(seq)) {
+                if (!present.get(seq)) {
+                    sackedAbove++; // segmentos que o receptor já tinha não indicam perda dos anteriores
+                }
+            } else if (sackedAbove >= DUP_THRESHOLD && !repaired.get(seq)) {
+                long lostAt = sentAt[seq % windowSize] + lostAfter;
+                if (now < lostAt) {
+                    lossCheckAt = Math.min(lossCheckAt, lostAt);
+                    continue;
+                }
+                retransmitirPerdido(seq);
+                if (TransferMetrics.TRACE) {
+                    System.out.println("Lacuna indicada pelo SACK. Reenviando pacote #" + seq);
+                }
+            }
+        }
+    }
+
+    // reenvia imediatamente, uma única vez, um segmento dado como perdido sem esperar o temporizador
+    private void retransmitirPerdido(int seq) throws IOException {
+        congestion.onLoss(seq, nextSeqNum, false);
+        enviarSegmento(seq, Frame.FLAG_ACK_NOW);
+        repaired.set(seq);
+        retransmitted.set(seq);
+        metrics.retransmissao(false);
+        metrics.janela(congestion.congestionWindow());
+    }
+
+    // reenviar apenas os segmentos cujo temporizador expirou
+    private void retransmitirExpirados() throws IOException {
+        long now = System.nanoTime();
+        nextDeadline = Long.MAX_VALUE;
+        int firstExpired = -1;
+        for (int seq = acked.nextClearBit(base); seq < nextSeqNum; seq = acked.nextClearBit(seq + 1)) {
+            long deadline = sentAt[seq % windowSize] + rtt.rtoNanos();
+            if (deadline <= now) {
+                if (firstExpired < 0) {
+                    // uma perda por varredura para o controle de congestionamento; o RTO só dobra, e o envio
+                    // só é abandonado, quando o segmento mais antigo expira seguidamente sem progresso algum,
+                    // de modo que perdas isoladas de segmentos diferentes não se somam
+                    firstExpired = seq;
+                    if (seq == base) {
+                        rtt.backoff();
+                        if (seq != stalledSeq) {
+                            stalledSeq = seq;
+                            stalledExpirations = 0;
+                        }
+                        if (++stalledExpirations > MAX_BACKOFF) {
+                            throw new IOException("O receptor parou de responder no pacote #" + seq);
+                        }
+                    }
+                    congestion.onLoss(seq, nextSeqNum, true);
+                    metrics.janela(congestion.congestionWindow());
+                }
+                enviarSegmento(seq, Frame.FLAG_ACK_NOW);
+                retransmitted.set(seq);
+                metrics.retransmissao(true);
+                if (TransferMetrics.TRACE) {
+                    System.out.println("Timeout expirado. Reenviando pacote #" + seq);
+                }
+                deadline = sentAt[seq % windowSize] + rtt.rtoNanos();
+            }
+            nextDeadline = Math.min(nextDeadline, deadline);
+        }
+    }
+
+    private void enviarSegmento(int seqNum, int flags) throws IOException {
+        long position = rangeStart + (long) seqNum * packetSize;
+        if (digest != null && seqNum == nextSeqNum) {
+            digest.lerAte(file, position); // segmentos que o receptor já tinha não passam pelo buffer
+        }
+        int length = lerSegmento(seqNum);
+        if (digest != null && seqNum == nextSeqNum) {
+            ByteBuffer payload = canal.sendBuffer();
+            payload.limit(Frame.HEADER_SIZE + length).position(Frame.HEADER_SIZE);
+            digest.atualizar(position, payload);
+            payload.clear();
+        }
+        if (compressor != null) {
+            int compressed = compressor.comprimir(seqNum, canal.sendBuffer(), Frame.HEADER_SIZE, length);
+            if (compressed >= 0) {
+                length = compressed;
+                flags |= Frame.FLAG_COMPRESSED;
+            }
+        }
+        canal.send(Frame.DATA, flags, position, length);
+        metrics.pacoteEnviado(length);
+        sentAt[seqNum % windowSize] = System.nanoTime();
+        if (share != null) {
+            // as retransmissões também gastam a parcela e atrasam os segmentos novos
+            long wait = share.consumir(Frame.HEADER_SIZE + length, sentAt[seqNum % windowSize]);
+            if (wait > 0) {
+                releasedAt = sentAt[seqNum % windowSize] + wait;
+            }
+        }
+        nextDeadline = Math.min(nextDeadline, sentAt[seqNum % windowSize] + rtt.rtoNanos());
+    }
+
+    // com o início do intervalo confirmado pelo receptor, os segmentos seguintes são comprimidos com ele como dicionário
+    private void prepararDicionario() throws IOException {
+        if (compressor == null || compressor.temDicionario() || base >= numPackets
+                || (long) base * packetSize < SegmentCompressor.DICTIONARY_SIZE) {
+            return;
+        }
+        byte[] dictionary = new byte[SegmentCompressor.DICTIONARY_SIZE];
+        lerArquivo(ByteBuffer.wrap(dictionary), rangeStart, 0);
+        compressor.usarDicionario(dictionary);
+    }
+
+    // avisa o receptor que todos os segmentos foram confirmados, enviando o resumo do intervalo
+    private void encerrar() throws IOException {
+        byte[] value = knownDigest;
+        if (digest != null) {
+            digest.lerAte(file, rangeEnd);
+            value = digest.concluir();
+        }
+        canal.sendBuffer().put(Frame.HEADER_SIZE, value);
+        canal.request(Frame.FIN, 0, numPackets, RangeDigest.BYTES, rtt, Frame.FIN_ACK);
+        lastDigest = value;
+    }
+
+    // bytes do arquivo no segmento seqNum; apenas o último do intervalo pode ser menor
+    private int tamanho(int seqNum) {
+        return (int) Math.min(packetSize, rangeEnd - rangeStart - (long) seqNum * packetSize);
+    }
+
+    // lê o segmento seqNum para a carga útil do buffer de envio e retorna o seu tamanho
+    private int lerSegmento(int seqNum) throws IOException {
+        long position = rangeStart + (long) seqNum * packetSize;
+        int segmentSize = tamanho(seqNum);
+        if (readAhead != null) {
+            // um segmento novo fora do bloco lido inicia o próximo bloco; retransmissões antigas são lidas sozinhas
+            if (seqNum == nextSeqNum && (seqNum < readAheadFirst || seqNum >= readAheadFirst + readAheadCount)) {
+                lerBloco(seqNum);
+            }
+            if (seqNum >= readAheadFirst && seqNum < readAheadFirst + readAheadCount) {
+                canal.sendBuffer().put(Frame.HEADER_SIZE, readAhead, (seqNum - readAheadFirst) * packetSize, segmentSize);
+                return segmentSize;
+            }
+        }
+        ByteBuffer packetBuffer = canal.sendBuffer();
+        packetBuffer.clear();
+        packetBuffer.position(Frame.HEADER_SIZE);
+        packetBuffer.limit(Frame.HEADER_SIZE + segmentSize);
+        lerArquivo(packetBuffer, position, seqNum);
+        packetBuffer.clear();
+        return segmentSize;
+    }
+
+    // lê de uma vez os segmentos a partir de seqNum que cabem no readAhead e, com compressão,
+    // começa a comprimi-los em paralelo
+    private void lerBloco(int seqNum) throws IOException {
+        if (compressor != null) {
+            compressor.aguardar(); // o bloco anterior ainda pode estar sendo comprimido
+        }
+        long position = rangeStart + (long) seqNum * packetSize;
+        readAhead.clear();
+        readAhead.limit((int) Math.min(readAhead.capacity(), rangeEnd - position));
+        lerArquivo(readAhead, position, seqNum);
+        readAheadFirst = seqNum;
+        readAheadCount = (readAhead.limit() + packetSize - 1) / packetSize;
+        if (compressor != null) {
+            compressor.antecipar(readAhead, readAheadFirst, readAheadCount);
+        }
+    }
+
+    // preenche target, da posição até o limite, com os bytes do arquivo a partir de position
+    private void lerArquivo(ByteBuffer target, long position, int seqNum) throws IOException {
+        if (cache != null) {
+            cache.ler(cacheOrigin, identity, file, position, target);
+            return;
+        }
+        long start = position - target.position();
+        while (target.hasRemaining()) {
+            if (file.read(target, start + target.position()) < 0) {
+                throw new IOException("Fim inesperado do arquivo no pacote #" + seqNum);
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * Formato binário dos datagramas trocados entre cliente e servidor. Todo
+ * datagrama começa com um cabeçalho fixo, lido e escrito por posição direto
+ * no buffer recebido, sem criar objetos:
+ *
+ * <pre>
+ *  0      2   3    4       6          8           12            20       24         28
+ *  +------+---+----+-------+----------+-----------+-------------+--------+----------+-----------
+ *  |magic |ver|tipo| flags | reservado| sessão    | offset (64) | tamanho| CRC32C   | carga útil
+ *  +------+---+----+-------+----------+-----------+-------------+--------+----------+-----------
+ * </pre>
+ *
+ * O CRC32C cobre o cabeçalho (sem o próprio campo) e a carga útil, e é
+ * conferido por quem recebe, já que o checksum do UDP é opcional no IPv4 e
+ * não protege contra corrupção dentro dos hosts.
+ *
+ * O significado do offset depende do tipo: tamanho do arquivo em FILE_INFO,
+ * posição do segmento no arquivo em DATA, ACK cumulativo em SACK, tamanho
+ * de segmento na negociação (SYN, SYN_ACK, PROBE, PROBE_ACK e AUTH) e número
+ * de fluxos em PARALLEL e STREAMS.
+ */
+public final class Frame {
+
+    public static final short MAGIC = 0x5546; // "UF"
+    public static final byte VERSION = 2;
+    public static final int HEADER_SIZE = 28;
+    public static final int MAX_DATAGRAM_SIZE = 65507; // maior carga útil possível de um datagrama UDP
+    public static final int MIN_SEGMENT_SIZE = 512; // cabe no menor datagrama que todo enlace IPv4 remonta
+    public static final int DEFAULT_SEGMENT_SIZE = 1500 - 20 - 8 - HEADER_SIZE; // datagrama sem fragmentação num MTU de 1500 bytes
+    public static final int MAX_SEGMENT_SIZE = MAX_DATAGRAM_SIZE - HEADER_SIZE;
+
+    // tipos de quadro
+    public static final int SYN = 1; // offset: maior segmento aceito pelo cliente
+    public static final int SYN_ACK = 2; // offset: maior segmento aceito pelos dois lados
+    public static final int ACK = 3;
+    public static final int AUTH = 4; // offset: segmento escolhido pelo cliente; carga útil: senha
+    public static final int AUTH_OK = 5;
+    public static final int LIST_REQUEST = 6; // offset: número da página; carga útil: prefixo, quebra de linha e último nome recebido
+    public static final int LIST = 7; // offset: número da página; carga útil: uma linha por arquivo (nome, tamanho e data, separados por tabulação)
+    public static final int DOWNLOAD = 8; // carga útil: nome do arquivo
+    public static final int FILE_INFO = 9; // offset: tamanho do arquivo; carga útil: identidade (FileIdentity) + nome do arquivo
+    public static final int FILE_INFO_ACK = 10; // carga útil: intervalos de segmentos que faltam ao receptor (pares de 32 bits)
+    public static final int DATA = 11; // offset: posição do segmento no arquivo
+    public static final int SACK = 12; // offset: ACK cumulativo; carga útil: janela anunciada + mapa de SACK
+    public static final int FIN = 13; // carga útil: SHA-256 do intervalo enviado; vazia no fim de uma transferência paralela
+    public static final int FIN_ACK = 14;
+    public static final int ERROR = 15; // carga útil: mensagem
+    public static final int PROBE = 16; // offset: tamanho da carga útil de enchimento sendo testado
+    public static final int PROBE_ACK = 17; // offset: tamanho do PROBE recebido
+    public static final int PARALLEL = 18; // offset: fluxos paralelos desejados pelo cliente
+    public static final int STREAMS = 19; // offset: fluxos concedidos; carga útil: porta (16 bits) de cada fluxo
+    public static final int JOIN = 20; // offset: sessão principal; carga útil: índice do fluxo (32 bits)
+    public static final int NACK = 21; // offset: posição do segmento que chegou corrompido
+
+    // devolvido pelo FrameChannel no lugar de DATA quando o CRC32C não confere; nunca é transmitido
+    public static final int CORRUPTED = -1;
+
+    // devolvido pelo FrameChannel.poll quando o tempo de espera expira; nunca é transmitido
+    public static final int TIMEOUT = -2;
+
+    // flags
+    public static final int FLAG_ACK_NOW = 0x1; // o remetente espera confirmação imediata deste segmento
+    public static final int FLAG_PARALLEL = 0x2; // em FILE_INFO: o conteúdo segue em intervalos pelos fluxos paralelos
+    public static final int FLAG_COMPRESSED = 0x4; // em SYN e SYN_ACK: compressão pedida e aceita; em DATA: carga útil comprimida
+    public static final int FLAG_MORE = 0x8; // em LIST: há mais páginas depois desta
+    public static final int FLAG_SIGNATURES = 0x10; // em DOWNLOAD: pede as assinaturas dos blocos do arquivo em vez do conteúdo
+    public static final int FLAG_BATCH = 0x20; // em DOWNLOAD: carga útil é um padrão glob; offset 0 pede o manifesto do lote, senão o conteúdo
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 2;
+    private static final int TYPE_OFFSET = 3;
+    private static final int FLAGS_OFFSET = 4;
+    private static final int SESSION_OFFSET = 8;
+    private static final int POSITION_OFFSET = 12;
+    private static final int LENGTH_OFFSET = 20;
+    private static final int CHECKSUM_OFFSET = 24;
+
+    private static final ThreadLocal<CRC32C> CRC = ThreadLocal.withInitial(CRC32C::new);
+
+    private Frame() {
+    }
+
+    // maior segmento desta ponta, configurável por -Dudp.segment
+    public static int maxSegmentSize() {
+        int segmentSize = Integer.getInteger("udp.segment", DEFAULT_SEGMENT_SIZE);
+        return Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, segmentSize));
+    }
+
+    // escreve o cabeçalho no início do buffer; a carga útil já deve estar a partir de HEADER_SIZE
+    public static void writeHeader(ByteBuffer buffer, int type, int flags, int sessionId, long offset, int payloadLength) {
+        buffer.putShort(MAGIC_OFFSET, MAGIC);
+        buffer.put(VERSION_OFFSET, VERSION);
+        buffer.put(TYPE_OFFSET, (byte) type);
+        buffer.putShort(FLAGS_OFFSET, (short) flags);
+        buffer.putShort(FLAGS_OFFSET + Short.BYTES, (short) 0);
+        buffer.putInt(SESSION_OFFSET, sessionId);
+        buffer.putLong(POSITION_OFFSET, offset);
+        buffer.putInt(LENGTH_OFFSET, payloadLength);
+        buffer.putInt(CHECKSUM_OFFSET, checksum(buffer, payloadLength));
+    }
+
+    // verifica o CRC32C de um quadro já validado por isValid
+    public static boolean checksumOk(ByteBuffer buffer) {
+        return buffer.getInt(CHECKSUM_OFFSET) == checksum(buffer, payloadLength(buffer));
+    }
+
+    // CRC32C do cabeçalho até o campo do checksum e da carga útil; a posição e o limite são preservados
+    private static int checksum(ByteBuffer buffer, int payloadLength) {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        CRC32C crc = CRC.get();
+        crc.reset();
+        buffer.limit(CHECKSUM_OFFSET).position(0);
+        crc.update(buffer);
+        buffer.limit(HEADER_SIZE + payloadLength).position(HEADER_SIZE);
+        crc.update(buffer);
+        buffer.limit(limit).position(position);
+        return (int) crc.getValue();
+    }
+
+    // verifica se os bytes recebidos formam um quadro desta versão do protocolo
+    public static boolean isValid(ByteBuffer buffer, int length) {
+        return length >= HEADER_SIZE
+                && buffer.getShort(MAGIC_OFFSET) == MAGIC
+                && buffer.get(VERSION_OFFSET) == VERSION
+                && buffer.getInt(LENGTH_OFFSET) >= 0
+                && buffer.getInt(LENGTH_OFFSET) <= length - HEADER_SIZE;
+    }
+
+    public static int type(ByteBuffer buffer) {
+        return buffer.get(TYPE_OFFSET);
+    }
+
+    public static int flags(ByteBuffer buffer) {
+        return buffer.getShort(FLAGS_OFFSET) & 0xFFFF;
+    }
+
+    public static int sessionId(ByteBuffer buffer) {
+        return buffer.getInt(SESSION_OFFSET);
+    }
+
+    public static long offset(ByteBuffer buffer) {
+        return buffer.getLong(POSITION_OFFSET);
+    }
+
+    public static int payloadLength(ByteBuffer buffer) {
+        return buffer.getInt(LENGTH_OFFSET);
+    }
+}
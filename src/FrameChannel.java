@@ -0,0 +1,242 @@
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Troca de quadros ({@link Frame}) de uma sessão sobre um {@link PacketChannel}.
+ * Mantém um buffer direto de envio e um de recepção reaproveitados por todos
+ * os datagramas e descarta o que não for um quadro válido da sessão. Quadros
+ * com o CRC32C errado são descartados como perdidos, exceto os de dados, que
+ * são entregues como {@link Frame#CORRUPTED} para o receptor pedir o reenvio.
+ */
+public class FrameChannel {
+
+    private static final int MAX_REQUEST_ATTEMPTS = 8;
+
+    private final PacketChannel canal;
+    private int sessionId;
+    private int segmentSize = Frame.DEFAULT_SEGMENT_SIZE; // carga útil dos quadros DATA, negociada no início da sessão
+    private boolean compression; // segmentos de dados comprimidos, negociado no handshake
+
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(Frame.MAX_DATAGRAM_SIZE);
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(Frame.MAX_DATAGRAM_SIZE);
+
+    public FrameChannel(PacketChannel canal, int sessionId) {
+        this.canal = canal;
+        this.sessionId = sessionId;
+    }
+
+    public int sessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(int sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public int segmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public boolean compressao() {
+        return compression;
+    }
+
+    public void setCompressao(boolean compression) {
+        this.compression = compression;
+    }
+
+    // buffer de envio: a carga útil deve ser escrita a partir de Frame.HEADER_SIZE antes do send
+    public ByteBuffer sendBuffer() {
+        return sendBuffer;
+    }
+
+    public void send(int type, int flags, long offset, int payloadLength) throws IOException {
+        Frame.writeHeader(sendBuffer, type, flags, sessionId, offset, payloadLength);
+        sendBuffer.limit(Frame.HEADER_SIZE + payloadLength).position(0);
+        canal.send(sendBuffer);
+        sendBuffer.clear();
+    }
+
+    public void send(int type, long offset) throws IOException {
+        send(type, 0, offset, 0);
+    }
+
+    public void send(int type, long offset, String payload) throws IOException {
+        send(type, 0, offset, payload);
+    }
+
+    public void send(int type, int flags, long offset, String payload) throws IOException {
+        send(type, flags, offset, escrever(payload));
+    }
+
+    // copia o texto para a carga útil do buffer de envio e retorna o seu tamanho
+    private int escrever(String payload) {
+        return escrever(Frame.HEADER_SIZE, payload) - Frame.HEADER_SIZE;
+    }
+
+    // copia o texto para o buffer de envio a partir de index e retorna a posição seguinte
+    private int escrever(int index, String payload) {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, sendBuffer.capacity() - index);
+        sendBuffer.put(index, bytes, 0, length);
+        return index + length;
+    }
+
+    // escreve a carga útil de um FILE_INFO (identidade do arquivo seguida do nome) e retorna o seu tamanho
+    public int escreverAnuncio(FileIdentity identity, String fileName) {
+        identity.escrever(sendBuffer, Frame.HEADER_SIZE);
+        return escrever(Frame.HEADER_SIZE + FileIdentity.BYTES, fileName) - Frame.HEADER_SIZE;
+    }
+
+    // aguarda o próximo quadro válido da sessão e retorna o seu tipo; 0 espera indefinidamente
+    public int receive(int timeoutMillis) throws IOException {
+        int type = poll(timeoutMillis);
+        if (type == Frame.TIMEOUT) {
+            throw new SocketTimeoutException("Tempo de espera esgotado.");
+        }
+        return type;
+    }
+
+    // como receive, mas a expiração do tempo de espera retorna Frame.TIMEOUT em vez de lançar uma
+    // exceção: nos laços de dados ela acontece a cada ACK adiado e não deve alocar nada
+    public int poll(int timeoutMillis) throws IOException {
+        canal.setSoTimeout(timeoutMillis);
+        while (true) {
+            int length = canal.poll(receiveBuffer);
+            if (length < 0) {
+                return Frame.TIMEOUT;
+            }
+            // sem sessão atribuída (cliente antes do SYN_ACK) aceita qualquer sessão; o SYN ainda não tem sessão
+            if (Frame.isValid(receiveBuffer, length) && (sessionId == 0
+                    || Frame.sessionId(receiveBuffer) == sessionId || Frame.type(receiveBuffer) == Frame.SYN)) {
+                if (Frame.checksumOk(receiveBuffer)) {
+                    return Frame.type(receiveBuffer);
+                }
+                if (Frame.type(receiveBuffer) == Frame.DATA) {
+                    return Frame.CORRUPTED;
+                }
+            }
+        }
+    }
+
+    /**
+     * Envia um quadro de controle e aguarda um dos tipos de resposta esperados,
+     * reenviando-o com o RTO do estimador a cada expiração. Um quadro ERROR do
+     * outro lado encerra a espera com a mensagem recebida.
+     */
+    public int request(int type, long offset, String payload, RttEstimator rtt, int... expected) throws IOException {
+        return request(type, 0, offset, payload, rtt, expected);
+    }
+
+    public int request(int type, int flags, long offset, String payload, RttEstimator rtt, int... expected) throws IOException {
+        return request(type, flags, offset, escrever(payload), rtt, expected);
+    }
+
+    // variante para cargas úteis binárias, já escritas a partir de Frame.HEADER_SIZE no buffer de envio
+    public int request(int type, int flags, long offset, int payloadLength, RttEstimator rtt, int... expected) throws IOException {
+        for (int attempt = 0; attempt < MAX_REQUEST_ATTEMPTS; attempt++) {
+            long sentAt = System.nanoTime();
+            send(type, flags, offset, payloadLength);
+            try {
+                while (true) {
+                    int received = receive(rtt.rtoMillis());
+                    if (received == Frame.ERROR) {
+                        throw new IOException(payloadString());
+                    }
+                    for (int candidate : expected) {
+                        if (received == candidate) {
+                            if (attempt == 0) {
+                                rtt.sample(System.nanoTime() - sentAt); // algoritmo de Karn: só sem reenvio
+                            }
+                            return received;
+                        }
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                rtt.backoff();
+            }
+        }
+        throw new SocketTimeoutException("Sem resposta do outro lado após " + MAX_REQUEST_ATTEMPTS + " tentativas.");
+    }
+
+    /**
+     * Testa se um datagrama com segmentSize bytes de carga útil atravessa o
+     * caminho, aguardando o eco PROBE_ACK por um RTO a cada tentativa. A perda
+     * de um teste não indica congestionamento, então o RTO não é dobrado.
+     */
+    public boolean probe(int segmentSize, int attempts, RttEstimator rtt) throws IOException {
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            try {
+                send(Frame.PROBE, 0, segmentSize, segmentSize);
+            } catch (SocketException e) {
+                return false; // maior que o MTU da interface local
+            }
+            try {
+                while (true) {
+                    int received = receive(rtt.rtoMillis());
+                    if (received == Frame.ERROR) {
+                        throw new IOException(payloadString());
+                    }
+                    if (received == Frame.PROBE_ACK && offset() == segmentSize) {
+                        return true;
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // tenta novamente
+            }
+        }
+        return false;
+    }
+
+    // datagramas que chegaram e ainda aguardam leitura
+    public int pendentes() {
+        return canal.pendentes();
+    }
+
+    // acesso ao último quadro recebido
+    public ByteBuffer received() {
+        return receiveBuffer;
+    }
+
+    public int flags() {
+        return Frame.flags(receiveBuffer);
+    }
+
+    public long offset() {
+        return Frame.offset(receiveBuffer);
+    }
+
+    public int payloadLength() {
+        return Frame.payloadLength(receiveBuffer);
+    }
+
+    public String payloadString() {
+        return payloadString(0);
+    }
+
+    // texto da carga útil a partir de skip bytes
+    public String payloadString(int skip) {
+        byte[] bytes = new byte[Math.max(0, payloadLength() - skip)];
+        receiveBuffer.get(Frame.HEADER_SIZE + skip, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // identidade e nome do arquivo anunciados pelo último FILE_INFO recebido
+    public FileIdentity identidadeAnunciada() {
+        if (payloadLength() < FileIdentity.BYTES) {
+            return new FileIdentity(offset(), 0, 0);
+        }
+        return FileIdentity.ler(receiveBuffer, Frame.HEADER_SIZE, offset());
+    }
+
+    public String nomeAnunciado() {
+        return payloadString(FileIdentity.BYTES);
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de latências em microssegundos com faixas log-lineares, no
+ * estilo do HdrHistogram: cada potência de 2 é dividida em SUB_BUCKETS faixas
+ * iguais, o que mantém o erro relativo abaixo de 1/SUB_BUCKETS em toda a
+ * escala com memória fixa. Registrar é um incremento atômico sem trava, e os
+ * percentis são lidos a qualquer momento sem interromper quem registra.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40; // ~12 dias em microssegundos
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder(); // soma dos valores, para a média
+
+    public void registrar(long micros) {
+        long value = Math.max(0, micros);
+        counts.incrementAndGet(faixa(value));
+        total.increment();
+        sum.add(value);
+    }
+
+    public long contagem() {
+        return total.sum();
+    }
+
+    public long soma() {
+        return sum.sum();
+    }
+
+    public double media() {
+        long count = contagem();
+        return count == 0 ? 0 : (double) soma() / count;
+    }
+
+    // menor valor v tal que ao menos a fração p das amostras é menor ou igual a v; 0 sem amostras
+    public long percentil(double p) {
+        long count = contagem();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return limite(i + 1) - 1;
+            }
+        }
+        return limite(BUCKETS) - 1;
+    }
+
+    private static int faixa(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(value));
+        int sub = (int) Math.min(SUB_BUCKETS - 1, (value >>> (exponent - SUB_BITS)) - SUB_BUCKETS);
+        return SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + sub;
+    }
+
+    // menor valor da faixa index
+    private static long limite(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+        int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+}
@@ -0,0 +1,146 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Endpoint HTTP opcional, ativado com -Dudp.metrics.port, que expõe em
+ * /metrics as métricas globais, as de cada transferência em andamento, as do
+ * cache de blocos e as taxas do escalonador de envio no formato de texto do
+ * Prometheus. Por padrão só atende na interface de loopback, já que expõe os
+ * endereços dos clientes sem autenticação; -Dudp.metrics.host escolhe outro
+ * endereço, como 0.0.0.0 para todas as interfaces.
+ */
+public class MetricsEndpoint implements Closeable {
+
+    private static final String[][] COUNTERS = {
+            {"udp_packets_sent_total", "Quadros de dados enviados, incluindo retransmissões."},
+            {"udp_bytes_sent_total", "Bytes de carga útil enviados."},
+            {"udp_packets_received_total", "Quadros de dados recebidos, incluindo duplicados."},
+            {"udp_bytes_received_total", "Bytes de carga útil recebidos."},
+            {"udp_retransmits_total", "Segmentos reenviados."},
+            {"udp_timeouts_total", "Segmentos reenviados pela expiração do temporizador."},
+            {"udp_corrupted_total", "Segmentos descartados por CRC32C ou compressão inválidos."},
+            {"udp_duplicates_total", "Segmentos recebidos mais de uma vez."},
+            {"udp_delivered_bytes_total", "Bytes do arquivo confirmados pelo receptor ou gravados."},
+    };
+    private static final List<ToDoubleFunction<TransferMetrics>> COUNTER_VALUES = List.of(
+            TransferMetrics::getPacketsSent, TransferMetrics::getBytesSent,
+            TransferMetrics::getPacketsReceived, TransferMetrics::getBytesReceived,
+            TransferMetrics::getRetransmits, TransferMetrics::getTimeouts,
+            TransferMetrics::getCorrupted, TransferMetrics::getDuplicates,
+            TransferMetrics::getBytesDelivered);
+
+    private final HttpServer server;
+    private final BlockCache cache; // null se o servidor não usa cache
+    private final SendScheduler scheduler;
+
+    private MetricsEndpoint(InetAddress host, int port, BlockCache cache, SendScheduler scheduler) throws IOException {
+        this.cache = cache;
+        this.scheduler = scheduler;
+        this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/metrics", this::responder);
+        server.start();
+    }
+
+    // endpoint na porta de -Dudp.metrics.port, no endereço de -Dudp.metrics.host ou no loopback;
+    // null se a porta não foi informada
+    static MetricsEndpoint configurado(BlockCache cache, SendScheduler scheduler) throws IOException {
+        Integer port = Integer.getInteger("udp.metrics.port");
+        if (port == null) {
+            return null;
+        }
+        String host = System.getProperty("udp.metrics.host");
+        return new MetricsEndpoint(host == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host),
+                port, cache, scheduler);
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    private void responder(HttpExchange exchange) throws IOException {
+        byte[] body = texto().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    String texto() {
+        List<TransferMetrics> transfers = new ArrayList<>();
+        transfers.add(TransferMetrics.GLOBAL);
+        transfers.addAll(TransferMetrics.ativas());
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < COUNTERS.length; i++) {
+            cabecalho(text, COUNTERS[i][0], "counter", COUNTERS[i][1]);
+            for (TransferMetrics metrics : transfers) {
+                linha(text, COUNTERS[i][0], metrics, "", COUNTER_VALUES.get(i).applyAsDouble(metrics));
+            }
+        }
+        cabecalho(text, "udp_goodput_bytes_per_second", "gauge", "Bytes entregues por segundo desde o início.");
+        for (TransferMetrics metrics : transfers) {
+            linha(text, "udp_goodput_bytes_per_second", metrics, "", metrics.getGoodputBytesPerSecond());
+        }
+        cabecalho(text, "udp_congestion_window_segments", "gauge", "Janela de congestionamento; no global, a soma das transferências.");
+        for (TransferMetrics metrics : transfers) {
+            linha(text, "udp_congestion_window_segments", metrics, "", metrics.getCongestionWindow());
+        }
+        cabecalho(text, "udp_rtt_seconds", "summary", "RTT medido pelo remetente.");
+        for (TransferMetrics metrics : transfers) {
+            LatencyHistogram rtt = metrics.histogramaRtt();
+            for (double quantile : new double[] {0.5, 0.9, 0.99, 1.0}) {
+                linha(text, "udp_rtt_seconds", metrics, ",quantile=\"" + quantile + "\"", rtt.percentil(quantile) / 1e6);
+            }
+            linha(text, "udp_rtt_seconds_sum", metrics, "", rtt.soma() / 1e6);
+            linha(text, "udp_rtt_seconds_count", metrics, "", rtt.contagem());
+        }
+        if (cache != null) {
+            cabecalho(text, "udp_cache_hits_total", "counter", "Leituras servidas pelo cache de blocos.");
+            text.append("udp_cache_hits_total ").append(cache.acertos()).append('\n');
+            cabecalho(text, "udp_cache_misses_total", "counter", "Blocos carregados do disco para o cache.");
+            text.append("udp_cache_misses_total ").append(cache.falhas()).append('\n');
+            cabecalho(text, "udp_cache_evictions_total", "counter", "Blocos removidos do cache.");
+            text.append("udp_cache_evictions_total ").append(cache.remocoes()).append('\n');
+            cabecalho(text, "udp_cache_bypass_total", "counter", "Leituras de blocos não admitidos no cache, feitas direto do disco.");
+            text.append("udp_cache_bypass_total ").append(cache.diretoDoDisco()).append('\n');
+        }
+        cabecalho(text, "udp_rate_limit_bytes_per_second", "gauge", "Limite global de banda dos envios; 0 sem limite.");
+        text.append("udp_rate_limit_bytes_per_second ").append(scheduler.getGlobalRateLimit()).append('\n');
+        cabecalho(text, "udp_client_rate_bytes_per_second", "gauge", "Taxa concedida a cada cliente ativo; 0 sem limite.");
+        for (Map.Entry<String, Long> rate : scheduler.getClientRates().entrySet()) {
+            text.append("udp_client_rate_bytes_per_second{client=\"").append(rate.getKey()).append("\"} ")
+                    .append(rate.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void cabecalho(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void linha(StringBuilder text, String name, TransferMetrics metrics, String labels, double value) {
+        text.append(name).append("{transfer=\"").append(metrics.nome()).append('"').append(labels).append("} ");
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            text.append((long) value);
+        } else {
+            text.append(value);
+        }
+        text.append('\n');
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
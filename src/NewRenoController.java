@@ -0,0 +1,68 @@
+/**
+ * Controle AIMD no estilo NewReno: partida lenta até o limiar, aumento de um
+ * segmento por RTT depois dele e redução pela metade a cada episódio de perda.
+ */
+public class NewRenoController implements CongestionController {
+
+    private static final int MIN_WINDOW = 2;
+
+    private final int maxWindow;
+    private double cwnd = INITIAL_WINDOW;
+    private double ssthresh;
+    private int recoveryPoint = -1; // perdas abaixo deste seq pertencem ao episódio já tratado
+    private double priorCwnd = -1; // janela antes da última redução por SACK, enquanto ela pode ser desfeita
+    private double priorSsthresh;
+
+    public NewRenoController(int maxWindow) {
+        this.maxWindow = maxWindow;
+        this.ssthresh = maxWindow;
+    }
+
+    @Override
+    public int congestionWindow() {
+        return (int) cwnd;
+    }
+
+    @Override
+    public long pacingIntervalNanos() {
+        return 0;
+    }
+
+    @Override
+    public void onAck(int ackedSegments, long rttNanos) {
+        if (cwnd < ssthresh) {
+            cwnd += ackedSegments; // partida lenta: dobra a cada RTT
+        } else {
+            cwnd += (double) ackedSegments / cwnd; // prevenção de congestionamento: +1 segmento por RTT
+        }
+        cwnd = Math.min(cwnd, maxWindow);
+    }
+
+    @Override
+    public void onLoss(int seq, int nextSeqNum, boolean timeout) {
+        if (timeout) {
+            // expiração do temporizador: o caminho pode ter mudado, recomeça da partida lenta
+            ssthresh = Math.max(cwnd / 2, MIN_WINDOW);
+            cwnd = 1;
+            recoveryPoint = nextSeqNum;
+            priorCwnd = -1;
+        } else if (seq >= recoveryPoint) {
+            // reduz uma única vez por janela de dados, mesmo com várias lacunas
+            priorCwnd = cwnd;
+            priorSsthresh = ssthresh;
+            ssthresh = Math.max(cwnd / 2, MIN_WINDOW);
+            cwnd = ssthresh;
+            recoveryPoint = nextSeqNum;
+        }
+    }
+
+    @Override
+    public void onSpuriousLoss() {
+        // a redução não tinha motivo: volta ao estado de antes dela, uma vez por episódio
+        if (priorCwnd > 0) {
+            cwnd = Math.max(cwnd, priorCwnd);
+            ssthresh = Math.max(ssthresh, priorSsthresh);
+            priorCwnd = -1;
+        }
+    }
+}
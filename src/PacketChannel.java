@@ -0,0 +1,34 @@
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * Canal de datagramas de uma única sessão. No servidor, os pacotes chegam por
+ * uma fila alimentada pelo despachante; no cliente, diretamente do socket.
+ */
+public interface PacketChannel {
+
+    // envia para o outro lado da sessão os bytes entre a posição e o limite do buffer
+    void send(ByteBuffer datagram) throws IOException;
+
+    // recebe o próximo datagrama da sessão no início do buffer, deixando-o pronto para leitura,
+    // e retorna o número de bytes copiados; -1 se o tempo de espera expirar
+    int poll(ByteBuffer buffer) throws IOException;
+
+    // como poll, mas a expiração do tempo de espera lança SocketTimeoutException
+    default int receive(ByteBuffer buffer) throws IOException {
+        int length = poll(buffer);
+        if (length < 0) {
+            throw new SocketTimeoutException("Tempo de espera esgotado.");
+        }
+        return length;
+    }
+
+    // tempo de espera (ms) usado pelo receive; 0 espera indefinidamente
+    void setSoTimeout(int timeout);
+
+    // datagramas já recebidos que aguardam o receive; 0 quando o canal não sabe, como no socket do cliente
+    default int pendentes() {
+        return 0;
+    }
+}
@@ -0,0 +1,219 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transferência de um arquivo dividida em intervalos contíguos de segmentos,
+ * um por fluxo. Cada fluxo roda numa sessão própria, com socket, janela e
+ * thread próprios, e lê ou grava por posição no mesmo arquivo. A sessão
+ * principal só anuncia o arquivo e, quando todos os intervalos terminam,
+ * troca uma única confirmação de fim; o arquivo recebido só é publicado com
+ * o nome definitivo antes dessa confirmação. Todos os receptores registram o
+ * progresso no mesmo {@link TransferJournal}, de modo que uma recepção
+ * interrompida pode ser retomada com qualquer número de fluxos.
+ */
+public class ParallelTransfer implements Closeable {
+
+    static final int MAX_STREAMS = 16;
+    static final int MIN_RANGE_PACKETS = 1024; // segmentos por fluxo abaixo dos quais dividir não compensa
+    private static final int POLL_INTERVAL = 20; // espera (ms) por quadros da sessão principal entre verificações
+    private static final long JOIN_TIMEOUT = TimeUnit.SECONDS.toNanos(60); // prazo para todos os fluxos se conectarem
+    private static final int FIN_TIMEOUT = 10_000; // espera (ms) pelo aviso de fim depois do último intervalo
+
+    /** Resposta reenviada quando o outro lado repete o pedido que abriu a transferência. */
+    interface Reply {
+        void send() throws IOException;
+    }
+
+    private final PositionalFile file;
+    private final Path filePath; // arquivo enviado ou destino do arquivo recebido
+    private final TransferJournal journal; // progresso da recepção; null ao enviar
+    private final FileIdentity identity;
+    private final long fileSize;
+    private final int segmentSize;
+    private final int streams;
+    private final BitSet joined = new BitSet(); // fluxos com sessão aberta
+    private final BitSet completed = new BitSet(); // intervalos confirmados pelo outro lado
+    private final CountDownLatch pending;
+    private volatile IOException failure;
+    private boolean published;
+
+    private ParallelTransfer(PositionalFile file, Path filePath, TransferJournal journal, FileIdentity identity,
+                             int segmentSize, int streams) {
+        this.file = file;
+        this.filePath = filePath;
+        this.journal = journal;
+        this.identity = identity;
+        this.fileSize = identity.size;
+        this.segmentSize = segmentSize;
+        this.streams = streams;
+        this.pending = new CountDownLatch(streams);
+    }
+
+    // abre o arquivo para leitura pelos remetentes dos intervalos
+    static ParallelTransfer paraEnvio(Path filePath, int segmentSize, int streams) throws IOException {
+        FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ);
+        try {
+            return new ParallelTransfer(PositionalFile.of(file), filePath, null, FileIdentity.of(filePath, file), segmentSize, streams);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    // abre o temporário onde os receptores dos intervalos gravam, retomando uma recepção anterior se houver
+    static ParallelTransfer paraRecepcao(Path filePath, FileIdentity identity, int segmentSize, int streams) throws IOException {
+        TransferJournal journal = TransferJournal.abrir(filePath, identity, segmentSize);
+        FileChannel file = FileReceiver.abrirTemporario(FileReceiver.temporario(filePath), journal, identity.size);
+        return new ParallelTransfer(PositionalFile.of(file), filePath, journal, identity, segmentSize, streams);
+    }
+
+    // fluxos usados para um arquivo: os dois lados chegam ao mesmo número a partir do tamanho,
+    // do segmento e dos fluxos negociados, e cada fluxo recebe ao menos MIN_RANGE_PACKETS segmentos
+    static int fluxos(long fileSize, int segmentSize, int negotiated) {
+        long packets = (fileSize + segmentSize - 1) / segmentSize;
+        return (int) Math.max(1, Math.min(Math.min(negotiated, MAX_STREAMS), packets / MIN_RANGE_PACKETS));
+    }
+
+    PositionalFile file() {
+        return file;
+    }
+
+    FileIdentity identity() {
+        return identity;
+    }
+
+    TransferJournal journal() {
+        return journal;
+    }
+
+    long fileSize() {
+        return fileSize;
+    }
+
+    int segmentSize() {
+        return segmentSize;
+    }
+
+    int streams() {
+        return streams;
+    }
+
+    // verdadeiro quando este lado recebe o arquivo
+    boolean recebendo() {
+        return journal != null;
+    }
+
+    Path filePath() {
+        return filePath;
+    }
+
+    // início do intervalo do fluxo, sempre alinhado ao segmento
+    long inicio(int stream) {
+        long packets = (fileSize + segmentSize - 1) / segmentSize;
+        return Math.min(fileSize, packets * stream / streams * segmentSize);
+    }
+
+    long fim(int stream) {
+        return inicio(stream + 1);
+    }
+
+    // reserva o intervalo para a sessão do fluxo; falso se o índice for inválido ou já estiver em uso
+    synchronized boolean juntar(int stream) {
+        if (stream < 0 || stream >= streams || joined.get(stream)) {
+            return false;
+        }
+        joined.set(stream);
+        return true;
+    }
+
+    synchronized boolean concluido(int stream) {
+        return completed.get(stream);
+    }
+
+    synchronized void concluir(int stream) {
+        if (!completed.get(stream)) {
+            completed.set(stream);
+            pending.countDown();
+        }
+    }
+
+    // a falha de um fluxo encerra a transferência inteira
+    void falhar(Exception e) {
+        if (failure == null) {
+            failure = e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+        while (pending.getCount() > 0) {
+            pending.countDown();
+        }
+    }
+
+    /**
+     * Aguarda todos os intervalos atendendo a sessão principal: um quadro do
+     * tipo repeated indica que a resposta ao pedido que abriu a transferência
+     * se perdeu e é respondido com reply. Um ERROR do outro lado, a falha de um
+     * fluxo ou fluxos que não se conectam a tempo interrompem a espera.
+     */
+    void aguardar(FrameChannel canal, int repeated, Reply reply) throws IOException {
+        long joinDeadline = System.nanoTime() + JOIN_TIMEOUT;
+        while (pending.getCount() > 0) {
+            try {
+                int type = canal.receive(POLL_INTERVAL);
+                if (type == Frame.ERROR) {
+                    falhar(new IOException(canal.payloadString()));
+                } else if (type == repeated && reply != null) {
+                    reply.send();
+                }
+            } catch (SocketTimeoutException e) {
+                // verifica o andamento dos fluxos
+            }
+            synchronized (this) {
+                if (joined.cardinality() < streams && System.nanoTime() > joinDeadline) {
+                    falhar(new SocketTimeoutException("Fluxos paralelos não se conectaram."));
+                }
+            }
+        }
+        if (failure != null) {
+            throw new IOException("Transferência paralela interrompida: " + failure.getMessage(), failure);
+        }
+    }
+
+    // aguarda na sessão principal o aviso de que o remetente viu todos os intervalos confirmados
+    void aguardarFim(FrameChannel canal) throws IOException {
+        while (true) {
+            int type = canal.receive(FIN_TIMEOUT);
+            if (type == Frame.FIN) {
+                return;
+            }
+            if (type == Frame.ERROR) {
+                throw new IOException(canal.payloadString());
+            }
+        }
+    }
+
+    // publica o arquivo recebido com o nome definitivo
+    void publicar() throws IOException {
+        file.close();
+        FileReceiver.publicar(FileReceiver.temporario(filePath), filePath);
+        journal.apagar();
+        published = true;
+    }
+
+    // uma recepção não publicada guarda o progresso para ser retomada
+    @Override
+    public void close() throws IOException {
+        try {
+            if (journal != null && !published) {
+                journal.interromper(file);
+            }
+        } finally {
+            file.close();
+        }
+    }
+}
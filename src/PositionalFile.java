@@ -0,0 +1,53 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Arquivo lido e gravado apenas por posição, que é tudo o que o remetente, o
+ * receptor, o resumo e o diário usam. Várias threads podem ler e gravar ao
+ * mesmo tempo em posições diferentes. Um arquivo comum entra pelo adaptador
+ * de {@link #of(FileChannel)} e um lote pelo {@link ConcatenatedFile}.
+ */
+public interface PositionalFile extends Closeable {
+
+    // lê a partir de position, possivelmente menos do que cabe em dst; -1 se position está no fim
+    int read(ByteBuffer dst, long position) throws IOException;
+
+    int write(ByteBuffer src, long position) throws IOException;
+
+    long size() throws IOException;
+
+    // garante no disco o que já foi gravado
+    void force(boolean metaData) throws IOException;
+
+    // adapta um FileChannel; fechar o adaptador fecha o canal
+    static PositionalFile of(FileChannel channel) {
+        return new PositionalFile() {
+            @Override
+            public int read(ByteBuffer dst, long position) throws IOException {
+                return channel.read(dst, position);
+            }
+
+            @Override
+            public int write(ByteBuffer src, long position) throws IOException {
+                return channel.write(src, position);
+            }
+
+            @Override
+            public long size() throws IOException {
+                return channel.size();
+            }
+
+            @Override
+            public void force(boolean metaData) throws IOException {
+                channel.force(metaData);
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+}
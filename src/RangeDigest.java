@@ -0,0 +1,72 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 de um intervalo do arquivo calculado durante a transferência, na
+ * ordem dos bytes: cada lado alimenta o resumo com os segmentos em ordem no
+ * momento em que passam pelo buffer do quadro, e só relê do disco os trechos
+ * que não passaram em ordem (segmentos fora de ordem já gravados, ou já
+ * presentes numa transferência retomada). O remetente envia o resumo no FIN
+ * e o receptor o confere antes de confirmar o fim do intervalo.
+ */
+public class RangeDigest {
+
+    static final int BYTES = 32;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final MessageDigest digest;
+    private long position; // posição no arquivo até onde o resumo já foi calculado
+    private ByteBuffer readBuffer; // criado apenas se for preciso reler do disco
+
+    public RangeDigest(long start) {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        position = start;
+    }
+
+    public long posicao() {
+        return position;
+    }
+
+    // acrescenta os bytes entre a posição e o limite de data, se forem os próximos do intervalo;
+    // a posição de data é preservada
+    public void atualizar(long offset, ByteBuffer data) {
+        if (offset != position) {
+            return;
+        }
+        int start = data.position();
+        position += data.remaining();
+        digest.update(data);
+        data.position(start);
+    }
+
+    // relê do arquivo os bytes entre a posição atual e end
+    public void lerAte(PositionalFile file, long end) throws IOException {
+        if (end <= position) {
+            return;
+        }
+        if (readBuffer == null) {
+            readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        }
+        while (position < end) {
+            readBuffer.clear().limit((int) Math.min(readBuffer.capacity(), end - position));
+            while (readBuffer.hasRemaining()) {
+                if (file.read(readBuffer, position + readBuffer.position()) < 0) {
+                    throw new IOException("Fim inesperado do arquivo ao calcular o resumo na posição " + position);
+                }
+            }
+            readBuffer.flip();
+            position += readBuffer.remaining();
+            digest.update(readBuffer);
+        }
+    }
+
+    public byte[] concluir() {
+        return digest.digest();
+    }
+}
@@ -0,0 +1,58 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimativa do RTT e do tempo de retransmissão (RTO) conforme a RFC 6298:
+ * média suavizada (SRTT) e variação (RTTVAR) das amostras, com o RTO dobrando
+ * a cada expiração até que uma nova amostra válida seja obtida.
+ */
+public class RttEstimator {
+
+    static final int INITIAL_RTO_MILLIS = 1000;
+    private static final long INITIAL_RTO = TimeUnit.MILLISECONDS.toNanos(INITIAL_RTO_MILLIS);
+    private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long MAX_RTO = TimeUnit.SECONDS.toNanos(60);
+    private static final long CLOCK_GRANULARITY = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private long srtt = -1;
+    private long rttvar;
+    private long rto = INITIAL_RTO;
+    private int backoff; // expirações consecutivas sem uma nova amostra
+
+    // registra uma amostra de RTT de um segmento que não foi retransmitido
+    public void sample(long rttNanos) {
+        if (rttNanos <= 0) {
+            return;
+        }
+        if (srtt < 0) {
+            srtt = rttNanos;
+            rttvar = rttNanos / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rttNanos)) / 4;
+            srtt = (7 * srtt + rttNanos) / 8;
+        }
+        backoff = 0;
+        rto = calcularRto();
+    }
+
+    private long calcularRto() {
+        return Math.min(MAX_RTO, Math.max(MIN_RTO, srtt + Math.max(CLOCK_GRANULARITY, 4 * rttvar)));
+    }
+
+    // dobra o RTO após uma expiração do temporizador
+    public void backoff() {
+        backoff++;
+        rto = Math.min(MAX_RTO, rto * 2);
+    }
+
+    public long rtoNanos() {
+        return rto;
+    }
+
+    public int rtoMillis() {
+        return (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(rto));
+    }
+
+    public long srttNanos() {
+        return srtt;
+    }
+}
@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Compressão dos segmentos de dados de um remetente, quando negociada no
+ * handshake. Cada segmento é comprimido sozinho com {@link Deflater}, de modo
+ * que o receptor o descomprime sem depender dos demais em trânsito e uma
+ * retransmissão é comprimida de novo a partir do arquivo. Como um segmento
+ * tem pouco contexto, assim que o receptor confirma os primeiros
+ * DICTIONARY_SIZE bytes do intervalo eles passam a ser o dicionário de todos
+ * os segmentos seguintes; o cabeçalho zlib de cada segmento diz se ele usa o
+ * dicionário e confere que os dois lados têm o mesmo. Os segmentos de um bloco lido de
+ * uma vez são comprimidos em paralelo por um pool de threads enquanto os
+ * anteriores são enviados. Um segmento que não encolhe ao menos MIN_SAVING
+ * segue sem compressão, e uma sequência de segmentos assim suspende as
+ * tentativas por um número crescente de segmentos, para não gastar CPU com
+ * conteúdo já comprimido.
+ */
+public class SegmentCompressor {
+
+    static final boolean REQUESTED = Boolean.getBoolean("udp.compress"); // o cliente pede compressão no SYN
+    static final boolean REFUSED = "false".equalsIgnoreCase(System.getProperty("udp.compress")); // o servidor recusa o pedido
+    static final int DICTIONARY_SIZE = 1024; // bytes do início do intervalo usados como dicionário
+    private static final int LEVEL = Deflater.BEST_SPEED;
+    private static final double MIN_SAVING = 0.1; // fração mínima economizada para enviar o segmento comprimido
+    private static final int MISS_LIMIT = 16; // segmentos seguidos sem economia antes de suspender as tentativas
+    private static final int MIN_BYPASS = 64; // segmentos enviados sem tentar comprimir na primeira suspensão
+    private static final int MAX_BYPASS = 16_384;
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), task -> {
+                Thread thread = new Thread(task, "compressao-" + THREADS.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(LEVEL));
+
+    private final int packetSize;
+    private final ByteBuffer scratch; // saída da compressão na thread do remetente
+    private ByteBuffer lookahead; // saída da compressão em paralelo, uma fatia de packetSize por segmento
+    private Future<?>[] pending = new Future<?>[0]; // compressão em paralelo de cada segmento do bloco
+    private int[] lengths = new int[0]; // tamanho comprimido de cada segmento do bloco; -1 se não compensou
+    private int lookaheadFirst; // primeiro segmento do bloco comprimido em paralelo
+    private int misses; // segmentos seguidos sem economia
+    private int bypass = MIN_BYPASS; // duração da próxima suspensão
+    private long bypassUntil = -1; // segmentos abaixo deste seguem sem compressão
+    private byte[] dictionary; // início do intervalo, já confirmado pelo receptor; null até lá
+
+    public SegmentCompressor(int packetSize) {
+        this.packetSize = packetSize;
+        this.scratch = ByteBuffer.allocateDirect(packetSize);
+    }
+
+    // os segmentos comprimidos a partir de agora usam o início do intervalo, que o receptor já tem, como dicionário
+    public void usarDicionario(byte[] dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    public boolean temDicionario() {
+        return dictionary != null;
+    }
+
+    /**
+     * Começa a comprimir em paralelo os segmentos de um bloco recém-lido,
+     * guardado a partir da posição 0 de block com o primeiro segmento first.
+     * O bloco não pode ser alterado até a próxima chamada, que aguarda as
+     * compressões em andamento.
+     */
+    public void antecipar(ByteBuffer block, int first, int count) throws IOException {
+        aguardar();
+        lookaheadFirst = first;
+        if (pending.length < count) {
+            pending = new Future<?>[count];
+            lengths = new int[count];
+            lookahead = ByteBuffer.allocateDirect(count * packetSize);
+        }
+        for (int i = 0; i < count; i++) {
+            pending[i] = null;
+            lengths[i] = -1;
+            if (first + i < bypassUntil) {
+                continue;
+            }
+            int index = i;
+            ByteBuffer raw = block.slice(i * packetSize, Math.min(packetSize, block.limit() - i * packetSize));
+            ByteBuffer out = lookahead.slice(i * packetSize, packetSize);
+            byte[] preset = dictionary;
+            pending[i] = POOL.submit(() -> {
+                lengths[index] = deflate(DEFLATERS.get(), preset, raw, out);
+            });
+        }
+    }
+
+    /**
+     * Substitui o segmento seqNum, com length bytes a partir de index em
+     * buffer, pela versão comprimida e retorna o seu tamanho, ou -1 se o
+     * segmento deve seguir sem compressão.
+     */
+    public int comprimir(int seqNum, ByteBuffer buffer, int index, int length) throws IOException {
+        int slot = seqNum - lookaheadFirst;
+        int compressed;
+        ByteBuffer source;
+        if (slot >= 0 && slot < pending.length && pending[slot] != null) {
+            esperar(pending[slot]);
+            compressed = lengths[slot];
+            source = lookahead.slice(slot * packetSize, packetSize);
+        } else if (seqNum < bypassUntil) {
+            return -1;
+        } else {
+            scratch.clear();
+            compressed = deflate(DEFLATERS.get(), dictionary, buffer.slice(index, length), scratch);
+            source = scratch;
+        }
+
+        if (compressed < 0 || compressed > length * (1 - MIN_SAVING)) {
+            if (++misses >= MISS_LIMIT) {
+                bypassUntil = seqNum + 1L + bypass;
+                bypass = Math.min(MAX_BYPASS, bypass * 2);
+                misses = 0;
+            }
+            return -1;
+        }
+        misses = 0;
+        bypass = MIN_BYPASS;
+        buffer.put(index, source, 0, compressed);
+        return compressed;
+    }
+
+    // aguarda as compressões em paralelo ainda em andamento
+    public void aguardar() throws IOException {
+        for (Future<?> task : pending) {
+            if (task != null) {
+                esperar(task);
+            }
+        }
+    }
+
+    private static void esperar(Future<?> task) throws IOException {
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Falha ao comprimir um segmento.", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Compressão interrompida.", e);
+        }
+    }
+
+    // comprime raw em out, com o dicionário se houver, e retorna o tamanho comprimido, ou -1 se não coube em out
+    private static int deflate(Deflater deflater, byte[] dictionary, ByteBuffer raw, ByteBuffer out) {
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(raw);
+        deflater.finish();
+        int start = out.position();
+        while (!deflater.finished() && out.hasRemaining()) {
+            deflater.deflate(out);
+        }
+        return deflater.finished() ? out.position() - start : -1;
+    }
+}
@@ -0,0 +1,267 @@
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Escalonador de banda dos envios do servidor. Cada cliente (endereço IP) tem
+ * um balde de fichas, compartilhado pelas suas sessões e fluxos paralelos,
+ * que diz ao {@link FileSender} quando o próximo segmento novo pode sair; o
+ * espaçamento do controle de congestionamento continua valendo por cima dele.
+ * O limite global é dividido entre os clientes ativos por justiça max-min
+ * ponderada: quem usa menos que a sua parcela fica com o que usa e o restante
+ * é redividido entre os outros, de modo que um download grande não tira a
+ * banda de um pequeno que acabou de começar. A divisão é refeita a cada
+ * REBALANCE_NANOS pela thread que enviar primeiro e sempre que um cliente
+ * começa ou termina. Sem limite global não há o que dividir: cada cliente
+ * fica só com o seu próprio limite e os pesos não têm efeito. Os limites vêm
+ * de -Dudp.rate.global.mb e -Dudp.rate.client.mb (MB/s) e, junto com os
+ * pesos, podem ser alterados em execução via JMX; sem limites, os envios só
+ * são contados.
+ */
+public class SendScheduler implements SendSchedulerMXBean, Closeable {
+
+    private static final long REBALANCE_NANOS = 50_000_000L;
+    private static final long BURST_NANOS = 5_000_000L; // rajada permitida, em tempo de envio na taxa concedida
+    private static final long MIN_BURST_BYTES = 64 * 1024;
+    private static final long MIN_RATE = 64 * 1024; // pedido mínimo de um cliente ativo, que o deixa voltar a crescer
+    private static final double SATURATED = 0.9; // fração da taxa concedida a partir da qual o cliente quer mais
+    private static final double HEADROOM = 1.25; // folga sobre o uso de quem não está saturado
+
+    private final Map<InetAddress, Client> clients = new ConcurrentHashMap<>(); // clientes com envios em andamento
+    private final Map<String, Long> limits = new ConcurrentHashMap<>(); // limites específicos por endereço
+    private final Map<String, Integer> weights = new ConcurrentHashMap<>();
+    private final AtomicLong nextRebalance = new AtomicLong(System.nanoTime());
+    private volatile long globalLimit;
+    private volatile long clientLimit;
+    private ObjectName name; // null se não foi publicado
+
+    /**
+     * Cliente com envios em andamento. Cada {@link SendScheduler#abrir} deve
+     * ser seguido de um close() quando o envio terminar.
+     */
+    final class Client implements Closeable {
+        private final InetAddress address;
+        private final String host;
+        private final AtomicLong sent = new AtomicLong(); // bytes enviados, incluindo cabeçalhos e retransmissões
+        private volatile long rate; // bytes por segundo concedidos; 0 se não há limite
+        private int transfers; // envios abertos; protegido pelo escalonador
+        private long measuredSent; // bytes enviados na última medição; protegido pelo escalonador
+        private long measuredAt = System.nanoTime();
+        private double demand = Double.POSITIVE_INFINITY; // taxa pedida; sem histórico, tudo o que puder receber
+        private double tokens; // fichas do balde, negativas enquanto o cliente está em débito
+        private long refilledAt = System.nanoTime();
+
+        private Client(InetAddress address) {
+            this.address = address;
+            this.host = address.getHostAddress();
+        }
+
+        /**
+         * Conta um quadro de bytes enviado em now e retorna quantos
+         * nanossegundos o próximo segmento novo do cliente deve esperar.
+         */
+        long consumir(int bytes, long now) {
+            sent.addAndGet(bytes);
+            long due = nextRebalance.get();
+            if (now - due >= 0 && nextRebalance.compareAndSet(due, now + REBALANCE_NANOS)) {
+                redistribuir(now);
+            }
+            long granted = rate;
+            if (granted <= 0) {
+                return 0;
+            }
+            synchronized (this) {
+                if (now > refilledAt) {
+                    double burst = Math.max(MIN_BURST_BYTES, granted * (BURST_NANOS / 1e9));
+                    tokens = Math.min(burst, tokens + (now - refilledAt) * (granted / 1e9));
+                    refilledAt = now;
+                }
+                tokens -= bytes;
+                return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / granted);
+            }
+        }
+
+        @Override
+        public void close() {
+            fechar(this);
+        }
+    }
+
+    private SendScheduler(long globalLimit, long clientLimit) {
+        this.globalLimit = globalLimit;
+        this.clientLimit = clientLimit;
+    }
+
+    // escalonador com os limites de -Dudp.rate.global.mb e -Dudp.rate.client.mb; sem eles, não limita
+    static SendScheduler configurado() {
+        return new SendScheduler(Long.getLong("udp.rate.global.mb", 0) << 20, Long.getLong("udp.rate.client.mb", 0) << 20);
+    }
+
+    // publica o escalonador via JMX com o nome da porta do servidor
+    void publicar(int port) {
+        try {
+            ObjectName objectName = new ObjectName("udp:type=SendScheduler,name=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            name = objectName;
+        } catch (JMException e) {
+            System.err.println("Escalonador de envio não publicado via JMX: " + e.getMessage());
+        }
+    }
+
+    // registra um envio para o endereço; o cliente recebe a sua parcela imediatamente
+    synchronized Client abrir(InetAddress address) {
+        Client client = clients.computeIfAbsent(address, Client::new);
+        client.transfers++;
+        redistribuir(System.nanoTime());
+        return client;
+    }
+
+    private synchronized void fechar(Client client) {
+        if (--client.transfers == 0) {
+            clients.remove(client.address);
+        }
+        redistribuir(System.nanoTime());
+    }
+
+    // refaz as taxas concedidas a partir do uso de cada cliente desde a última divisão
+    private synchronized void redistribuir(long now) {
+        long global = globalLimit;
+        List<Client> active = new ArrayList<>(clients.values());
+        // o pedido mínimo cabe na parcela igual do limite global, para que um limite baixo continue valendo
+        double minimum = global > 0 && !active.isEmpty() ? Math.min(MIN_RATE, (double) global / active.size()) : MIN_RATE;
+        for (Client client : active) {
+            // uma divisão logo depois da anterior mantém o pedido medido nela
+            if (now - client.measuredAt >= REBALANCE_NANOS / 2) {
+                long sent = client.sent.get();
+                double used = (sent - client.measuredSent) / ((now - client.measuredAt) / 1e9);
+                long granted = client.rate;
+                client.measuredSent = sent;
+                client.measuredAt = now;
+                // sem limite ou saturado, o cliente quer tudo o que puder receber
+                client.demand = granted <= 0 || used >= SATURATED * granted
+                        ? Double.POSITIVE_INFINITY : Math.max(minimum, used * HEADROOM);
+            }
+        }
+        // sem limite global, cada cliente só é contido pelo seu próprio limite
+        if (global <= 0) {
+            for (Client client : active) {
+                client.rate = limite(client.host);
+            }
+            return;
+        }
+        // cada cliente, do menor pedido por peso ao maior, recebe o pedido ou a sua parcela do que resta
+        active.sort(Comparator.comparingDouble(client -> pedido(client) / peso(client.host)));
+        double remaining = global;
+        double totalWeight = 0;
+        for (Client client : active) {
+            totalWeight += peso(client.host);
+        }
+        double[] grants = new double[active.size()];
+        double weightLeft = totalWeight;
+        for (int i = 0; i < grants.length; i++) {
+            int weight = peso(active.get(i).host);
+            grants[i] = Math.min(pedido(active.get(i)), remaining * weight / weightLeft);
+            remaining -= grants[i];
+            weightLeft -= weight;
+        }
+        // a sobra dos pedidos atendidos volta a todos, por peso, até o limite de cada um, para que a
+        // banda não fique parada até a próxima divisão quando um cliente passa a querer mais; a soma
+        // das taxas nunca passa do limite global, e nenhuma chega a 0, que significaria sem limite
+        for (int i = 0; i < grants.length; i++) {
+            Client client = active.get(i);
+            long limit = limite(client.host);
+            double grant = grants[i] + remaining * peso(client.host) / totalWeight;
+            client.rate = Math.max(1, (long) (limit > 0 ? Math.min(limit, grant) : grant));
+        }
+    }
+
+    // pedido do cliente, até o seu limite
+    private double pedido(Client client) {
+        long limit = limite(client.host);
+        return limit > 0 ? Math.min(client.demand, limit) : client.demand;
+    }
+
+    private long limite(String host) {
+        return limits.getOrDefault(host, clientLimit);
+    }
+
+    private int peso(String host) {
+        return weights.getOrDefault(host, 1);
+    }
+
+    @Override
+    public long getGlobalRateLimit() {
+        return globalLimit;
+    }
+
+    @Override
+    public void setGlobalRateLimit(long bytesPerSecond) {
+        globalLimit = Math.max(0, bytesPerSecond);
+        redistribuir(System.nanoTime());
+    }
+
+    @Override
+    public long getClientRateLimit() {
+        return clientLimit;
+    }
+
+    @Override
+    public void setClientRateLimit(long bytesPerSecond) {
+        clientLimit = Math.max(0, bytesPerSecond);
+        redistribuir(System.nanoTime());
+    }
+
+    @Override
+    public void setClientLimit(String host, long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            limits.remove(host);
+        } else {
+            limits.put(host, bytesPerSecond);
+        }
+        redistribuir(System.nanoTime());
+    }
+
+    @Override
+    public void setClientWeight(String host, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Peso inválido: " + weight);
+        }
+        weights.put(host, weight);
+        redistribuir(System.nanoTime());
+    }
+
+    @Override
+    public int getActiveClients() {
+        return clients.size();
+    }
+
+    @Override
+    public Map<String, Long> getClientRates() {
+        Map<String, Long> rates = new TreeMap<>();
+        for (Client client : clients.values()) {
+            rates.put(client.host, client.rate);
+        }
+        return rates;
+    }
+
+    @Override
+    public void close() {
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                // já removido
+            }
+            name = null;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+import java.util.Map;
+
+/**
+ * Limites de banda do envio do servidor, publicados via JMX sob o nome
+ * udp:type=SendScheduler,name=porta e alteráveis em execução. Taxas em bytes
+ * por segundo; 0 significa sem limite.
+ */
+public interface SendSchedulerMXBean {
+
+    long getGlobalRateLimit();
+
+    void setGlobalRateLimit(long bytesPerSecond);
+
+    long getClientRateLimit();
+
+    void setClientRateLimit(long bytesPerSecond);
+
+    // limite de um endereço, no lugar do padrão por cliente; negativo volta ao padrão
+    void setClientLimit(String host, long bytesPerSecond);
+
+    // peso do endereço na divisão do limite global; o padrão é 1 e, sem limite global, não tem efeito
+    void setClientWeight(String host, int weight);
+
+    int getActiveClients();
+
+    // taxa concedida a cada cliente ativo; 0 se não há limite
+    Map<String, Long> getClientRates();
+}
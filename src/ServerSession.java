@@ -0,0 +1,348 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Máquina de estados de um cliente conectado ao servidor. Cada sessão roda na
+ * sua própria thread e recebe apenas os quadros com o seu identificador vindos
+ * do endereço do cliente, entregues pelo despachante do {@link UDPServer}.
+ * Uma sessão aberta num socket de fluxo paralelo se junta (JOIN) à
+ * transferência da sessão principal do mesmo cliente e atende apenas o seu
+ * intervalo.
+ */
+public class ServerSession implements Runnable, PacketChannel {
+
+    private static final int INBOX_CAPACITY = 1024; // datagramas pendentes por sessão, ao menos a janela máxima
+    private static final int IDLE_TIMEOUT = 60_000; // encerra sessões abandonadas pelo cliente
+    private static final int LINGER_TIMEOUT = 5000; // espera (ms) por reenvios do cliente após uma operação
+
+    private final UDPServer server;
+    private final DatagramChannel channel;
+    private final BufferPool pool;
+    private final InetSocketAddress clientAddress;
+    private final int sessionId;
+    private final BlockingQueue<ByteBuffer> inbox = new ArrayBlockingQueue<>(INBOX_CAPACITY);
+    private volatile Thread waiter; // thread da sessão parada no poll à espera de um datagrama
+    private int timeout;
+    private int streams = 1; // fluxos paralelos concedidos ao cliente
+    private volatile ParallelTransfer transfer; // transferência paralela em andamento, aberta por esta sessão
+
+    public ServerSession(UDPServer server, DatagramChannel channel, BufferPool pool,
+                         InetSocketAddress clientAddress, int sessionId) {
+        this.server = server;
+        this.channel = channel;
+        this.pool = pool;
+        this.clientAddress = clientAddress;
+        this.sessionId = sessionId;
+    }
+
+    InetSocketAddress clientAddress() {
+        return clientAddress;
+    }
+
+    int sessionId() {
+        return sessionId;
+    }
+
+    int streams() {
+        return streams;
+    }
+
+    ParallelTransfer transferencia() {
+        return transfer;
+    }
+
+    void iniciarTransferencia(ParallelTransfer transfer) {
+        this.transfer = transfer;
+    }
+
+    // chamado pela thread do despachante; copia o datagrama para um buffer do conjunto
+    // e o descarta se o conjunto estiver esgotado ou a sessão sobrecarregada. Esperar por
+    // um buffer seguraria o despachante e, com ele, todas as outras sessões
+    void deliver(ByteBuffer datagram) {
+        ByteBuffer copy = pool.acquire(datagram.remaining());
+        if (copy == null) {
+            if (TransferMetrics.TRACE) {
+                System.out.println("Pacote de " + clientAddress + " descartado: buffers esgotados.");
+            }
+            return;
+        }
+        copy.put(datagram).flip();
+        if (!inbox.offer(copy)) {
+            pool.release(copy);
+            return;
+        }
+        Thread waiting = waiter;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            acceptConnection();
+        } catch (SocketTimeoutException e) {
+            System.out.println("Sessão " + clientAddress + " expirou por inatividade.");
+        } catch (IOException e) {
+            if (Thread.currentThread().isInterrupted()) {
+                System.out.println("Sessão " + clientAddress + " interrompida pelo encerramento do servidor.");
+            } else {
+                System.err.println("Erro na sessão " + clientAddress + ": " + e.getMessage());
+            }
+        } finally {
+            server.closeSession(this);
+            // devolve ao conjunto os datagramas que ficaram sem leitura
+            for (ByteBuffer datagram = inbox.poll(); datagram != null; datagram = inbox.poll()) {
+                pool.release(datagram);
+            }
+        }
+    }
+
+    private void acceptConnection() throws IOException {
+        FrameChannel canal = new FrameChannel(this, sessionId);
+
+        // verifica se é um quadro SYN e responde com o identificador da sessão, o maior
+        // segmento aceito pelos dois lados e se os segmentos serão comprimidos
+        if (canal.receive(0) != Frame.SYN) {
+            throw new IOException("Solicitação Inválida.");
+        }
+        long maxSegmentSize = Math.max(Frame.MIN_SEGMENT_SIZE, Math.min(canal.offset(), Frame.maxSegmentSize()));
+        canal.setSegmentSize((int) maxSegmentSize);
+        canal.setCompressao((canal.flags() & Frame.FLAG_COMPRESSED) != 0 && !SegmentCompressor.REFUSED);
+        int synFlags = canal.compressao() ? Frame.FLAG_COMPRESSED : 0;
+        canal.send(Frame.SYN_ACK, synFlags, maxSegmentSize, 0);
+
+        boolean authorized = false; // senha correta: permite upload
+        boolean authenticated = false; // senha correta ou acesso somente leitura
+        ParallelTransfer joined = null; // transferência da sessão principal, numa sessão de fluxo
+        int stream = -1; // intervalo atendido por esta sessão de fluxo
+        int wait = 0; // espera pelo próximo quadro; 0 usa IDLE_TIMEOUT
+        while (true) {
+            int type;
+            try {
+                type = canal.receive(wait);
+            } catch (SocketTimeoutException e) {
+                if (wait != LINGER_TIMEOUT) {
+                    throw e;
+                }
+                // nenhum reenvio pendente da última operação: a sessão de fluxo atendeu o seu único
+                // intervalo, e a principal volta a aguardar a próxima operação
+                if (joined != null) {
+                    return;
+                }
+                wait = 0;
+                continue;
+            }
+
+            switch (type) {
+                case Frame.SYN:
+                    // o SYN_ACK se perdeu
+                    canal.send(Frame.SYN_ACK, synFlags, maxSegmentSize, 0);
+                    break;
+                case Frame.ACK:
+                    break;
+                case Frame.PROBE:
+                    // ecoa apenas testes que chegaram inteiros
+                    if (canal.payloadLength() == canal.offset()) {
+                        canal.send(Frame.PROBE_ACK, canal.offset());
+                    }
+                    break;
+                case Frame.AUTH:
+                    // o cliente informa o segmento escolhido, limitado ao anunciado no SYN_ACK
+                    long segmentSize = canal.offset();
+                    if (segmentSize < Frame.MIN_SEGMENT_SIZE || segmentSize > maxSegmentSize) {
+                        canal.send(Frame.ERROR, 0, "Tamanho de segmento inválido: " + segmentSize);
+                        return;
+                    }
+                    canal.setSegmentSize((int) segmentSize);
+                    String password = canal.payloadString();
+                    if (password.equals(UDPServer.PASSWORD)) {
+                        System.out.println("Conexão estabelecida com " + clientAddress + ". Cliente autorizado.");
+                        authorized = true;
+                        authenticated = true;
+                    } else if (password.equals(UDPServer.NO_PASSWORD)) {
+                        authenticated = true;
+                    } else {
+                        System.out.println("Conexão recusada para " + clientAddress + ". Senha incorreta.");
+                        canal.send(Frame.ERROR, 0, "Senha incorreta.");
+                        return;
+                    }
+                    canal.send(Frame.AUTH_OK, 0);
+                    break;
+                case Frame.PARALLEL:
+                    if (negarAcesso(canal, authenticated)) {
+                        return;
+                    }
+                    // concede até um fluxo por socket paralelo do servidor e informa as portas
+                    int[] ports = server.portasDosFluxos();
+                    int granted = (int) Math.max(0, Math.min(canal.offset(), ports.length));
+                    streams = Math.max(1, granted);
+                    for (int i = 0; i < granted; i++) {
+                        canal.sendBuffer().putShort(Frame.HEADER_SIZE + i * Short.BYTES, (short) ports[i]);
+                    }
+                    canal.send(Frame.STREAMS, 0, granted, granted * Short.BYTES);
+                    break;
+                case Frame.JOIN:
+                    // o offset identifica a sessão principal, que deve ser do mesmo cliente
+                    ServerSession parent = server.sessao((int) canal.offset());
+                    ParallelTransfer parallel = parent == null ? null : parent.transferencia();
+                    int index = canal.payloadLength() >= Integer.BYTES ? canal.received().getInt(Frame.HEADER_SIZE) : -1;
+                    if (joined == null) {
+                        if (parallel == null || !parent.clientAddress().getAddress().equals(clientAddress.getAddress())
+                                || parallel.segmentSize() > maxSegmentSize || !parallel.juntar(index)) {
+                            System.out.println("Fluxo recusado para " + clientAddress + ".");
+                            canal.send(Frame.ERROR, 0, "Transferência paralela inexistente.");
+                            return;
+                        }
+                        joined = parallel;
+                        stream = index;
+                        canal.setSegmentSize(parallel.segmentSize());
+                    } else if (joined != parallel || stream != index) {
+                        canal.send(Frame.ERROR, 0, "Transferência paralela inexistente.");
+                        return;
+                    }
+                    // também responde a um JOIN repetido, cujo AUTH_OK se perdeu
+                    canal.send(Frame.AUTH_OK, 0);
+                    break;
+                case Frame.LIST_REQUEST:
+                    if (negarAcesso(canal, authenticated)) {
+                        return;
+                    }
+                    // envia uma página da lista de arquivos para o cliente
+                    server.listarArquivos(canal);
+                    break;
+                case Frame.DOWNLOAD:
+                    if (joined != null) {
+                        if (negarAcesso(canal, !joined.recebendo())) {
+                            return;
+                        }
+                        // envia o intervalo deste fluxo, uma única vez
+                        if (!joined.concluido(stream)) {
+                            server.enviarIntervalo(joined, stream, canal.payloadString(), canal);
+                        }
+                        wait = LINGER_TIMEOUT;
+                        break;
+                    }
+                    if (negarAcesso(canal, authenticated)) {
+                        return;
+                    }
+                    if ((canal.flags() & Frame.FLAG_BATCH) != 0) {
+                        // manifesto ou conteúdo de um lote; o conteúdo vem depois do manifesto
+                        boolean manifest = canal.offset() == 0;
+                        server.enviarLote(canal.payloadString(), canal.offset(), canal);
+                        if (!manifest) {
+                            wait = LINGER_TIMEOUT;
+                        }
+                        break;
+                    }
+                    if ((canal.flags() & Frame.FLAG_SIGNATURES) != 0) {
+                        // assinaturas para a sincronização por diferenças; o download do arquivo vem em seguida
+                        server.enviarAssinaturas(canal.payloadString(), canal);
+                        break;
+                    }
+                    // envia o arquivo selecionado pelo cliente
+                    server.enviarArquivo(canal.payloadString(), canal, this);
+                    wait = LINGER_TIMEOUT;
+                    break;
+                case Frame.FILE_INFO:
+                    if (joined != null) {
+                        if (negarAcesso(canal, joined.recebendo())) {
+                            return;
+                        }
+                        // recebe o intervalo deste fluxo, uma única vez
+                        if (!joined.concluido(stream)) {
+                            server.receberIntervalo(joined, stream, canal);
+                        }
+                        wait = LINGER_TIMEOUT;
+                        break;
+                    }
+                    if (negarAcesso(canal, authorized)) {
+                        return;
+                    }
+                    // recebe o arquivo anunciado pelo cliente
+                    server.receberArquivo(canal, this);
+                    wait = LINGER_TIMEOUT;
+                    break;
+                case Frame.FIN:
+                    // o FIN_ACK do último upload se perdeu
+                    canal.send(Frame.FIN_ACK, canal.offset());
+                    break;
+                default:
+                    // quadros atrasados de uma transferência já encerrada
+            }
+        }
+    }
+
+    // responde com ERROR e encerra a sessão se o cliente não tiver permissão para a operação
+    private boolean negarAcesso(FrameChannel canal, boolean permitted) throws IOException {
+        if (!permitted) {
+            System.out.println("Operação negada para " + clientAddress + ".");
+            canal.send(Frame.ERROR, 0, "Operação não permitida.");
+        }
+        return !permitted;
+    }
+
+    @Override
+    public void send(ByteBuffer datagram) throws IOException {
+        channel.send(datagram, clientAddress);
+    }
+
+    @Override
+    public int poll(ByteBuffer buffer) throws IOException {
+        ByteBuffer datagram = inbox.poll();
+        if (datagram == null) {
+            datagram = aguardar(TimeUnit.MILLISECONDS.toNanos(timeout == 0 ? IDLE_TIMEOUT : timeout));
+            if (datagram == null) {
+                return -1;
+            }
+        }
+        // assim como o DatagramChannel, trunca datagramas maiores que o buffer
+        buffer.clear();
+        int length = Math.min(datagram.remaining(), buffer.remaining());
+        datagram.limit(datagram.position() + length);
+        buffer.put(datagram).flip();
+        pool.release(datagram);
+        return length;
+    }
+
+    // espera o próximo datagrama parando a thread até o deliver acordá-la: a espera do poll com tempo
+    // da fila alocaria um nó a cada vez, e o remetente espera assim a cada ACK. A fila é conferida de novo
+    // depois de waiter ser publicado, para não perder um datagrama entregue entre as duas coisas
+    private ByteBuffer aguardar(long timeoutNanos) throws IOException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        waiter = Thread.currentThread();
+        try {
+            ByteBuffer datagram;
+            while ((datagram = inbox.poll()) == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new IOException("Sessão interrompida.");
+                }
+            }
+            return datagram;
+        } finally {
+            waiter = null;
+        }
+    }
+
+    @Override
+    public int pendentes() {
+        return inbox.size();
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+}
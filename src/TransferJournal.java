@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Diário de uma recepção, gravado ao lado do temporário ".part": identidade
+ * do arquivo de origem, tamanho do segmento e o mapa dos segmentos já
+ * gravados. Os dados do temporário são forçados para o disco antes de cada
+ * gravação do diário, de modo que um segmento marcado nele nunca se perde.
+ * Se a recepção for interrompida, o diário e o temporário são mantidos e a
+ * próxima transferência do mesmo arquivo pede apenas os segmentos que faltam.
+ */
+public class TransferJournal {
+
+    private static final String SUFFIX = ".journal";
+    private static final int MAGIC = 0x554A524E; // "UJRN"
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + 3 * Long.BYTES + Integer.BYTES;
+    private static final long WRITE_INTERVAL = TimeUnit.SECONDS.toNanos(1); // intervalo entre gravações durante a recepção
+
+    private final Path path;
+    private final Path tempPath; // temporário com os dados recebidos
+    private final FileIdentity identity;
+    private final int segmentSize;
+    private final BitSet segments; // segmentos já gravados no temporário, numerados desde o início do arquivo
+    private final boolean resumed;
+    private final long[] words; // mapa copiado a cada gravação, com o tamanho do arquivo inteiro
+    private final ByteBuffer image; // conteúdo do diário, reaproveitado entre as gravações
+    private final Path journalTemp;
+    private boolean dirty; // segmentos marcados desde a última gravação
+    private long lastWrite = System.nanoTime();
+
+    private TransferJournal(Path path, Path tempPath, FileIdentity identity, int segmentSize, BitSet segments,
+                            boolean resumed) {
+        this.path = path;
+        this.tempPath = tempPath;
+        this.identity = identity;
+        this.segmentSize = segmentSize;
+        this.segments = segments;
+        this.resumed = resumed;
+        long segmentCount = (identity.size + segmentSize - 1) / segmentSize;
+        this.words = new long[(int) Math.max((segmentCount + 63) / 64, (segments.length() + 63) / 64)];
+        this.image = ByteBuffer.allocate(HEADER_SIZE + words.length * Long.BYTES);
+        this.journalTemp = path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    /**
+     * Abre o diário da recepção de filePath. Um diário anterior só é retomado
+     * se tiver a mesma identidade e o mesmo segmento e se o temporário ainda
+     * tiver o tamanho do arquivo; caso contrário é descartado.
+     */
+    static TransferJournal abrir(Path filePath, FileIdentity identity, int segmentSize) throws IOException {
+        Path tempPath = FileReceiver.temporario(filePath);
+        Path path = tempPath.resolveSibling(tempPath.getFileName() + SUFFIX);
+        BitSet segments = ler(path, identity, segmentSize);
+        if (segments != null && Files.exists(tempPath) && Files.size(tempPath) == identity.size) {
+            return new TransferJournal(path, tempPath, identity, segmentSize, segments, true);
+        }
+        Files.deleteIfExists(path);
+        // dimensionado para o arquivo inteiro, sem crescer aos poucos durante a recepção
+        BitSet empty = new BitSet((int) ((identity.size + segmentSize - 1) / segmentSize));
+        return new TransferJournal(path, tempPath, identity, segmentSize, empty, false);
+    }
+
+    // lê o mapa de um diário existente; null se não existir ou for de outro arquivo
+    private static BitSet ler(Path path, FileIdentity identity, int segmentSize) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        ByteBuffer journal = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (journal.remaining() < HEADER_SIZE || journal.getInt() != MAGIC || journal.getInt() != segmentSize) {
+            return null;
+        }
+        FileIdentity recorded = new FileIdentity(journal.getLong(), journal.getLong(), journal.getLong());
+        int words = journal.getInt();
+        if (!recorded.equals(identity) || words < 0 || journal.remaining() != words * Long.BYTES) {
+            return null;
+        }
+        return BitSet.valueOf(journal.asLongBuffer());
+    }
+
+    // verdadeiro quando a recepção continua a partir de um diário anterior
+    boolean retomado() {
+        return resumed;
+    }
+
+    synchronized boolean contem(long segment) {
+        return segments.get((int) segment);
+    }
+
+    synchronized int recebidos() {
+        return segments.cardinality();
+    }
+
+    // marca os segmentos [from, to) depois que foram gravados no temporário
+    synchronized void marcar(long from, long to) {
+        if (from < to) {
+            segments.set((int) from, (int) to);
+            dirty = true;
+        }
+    }
+
+    // desmarca os segmentos [from, to), cujo conteúdo no temporário não é confiável
+    synchronized void desmarcar(long from, long to) {
+        if (from < to) {
+            segments.clear((int) from, (int) to);
+            dirty = true;
+        }
+    }
+
+    // marca os segmentos cobertos pelos bytes [start, end) gravados no temporário
+    void marcarBytes(long start, long end) {
+        marcar(start / segmentSize, (end + segmentSize - 1) / segmentSize);
+    }
+
+    // grava o diário no máximo uma vez por WRITE_INTERVAL
+    synchronized void gravarPeriodicamente(PositionalFile data) throws IOException {
+        if (System.nanoTime() - lastWrite >= WRITE_INTERVAL) {
+            gravar(data);
+        }
+    }
+
+    // força os dados do temporário para o disco e só então grava o diário, de forma atômica
+    synchronized void gravar(PositionalFile data) throws IOException {
+        lastWrite = System.nanoTime();
+        if (!dirty) {
+            return;
+        }
+        data.force(false);
+        // o mapa tem o tamanho do arquivo inteiro: as palavras vazias do fim não mudam a leitura
+        // e a gravação não aloca nada proporcional ao arquivo
+        copiarPalavras();
+        image.clear();
+        image.putInt(MAGIC).putInt(segmentSize)
+                .putLong(identity.size).putLong(identity.modified).putLong(identity.fingerprint)
+                .putInt(words.length);
+        for (long word : words) {
+            image.putLong(word);
+        }
+        image.flip();
+        try (FileChannel file = FileChannel.open(journalTemp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (image.hasRemaining()) {
+                file.write(image);
+            }
+            file.force(false);
+        }
+        Files.move(journalTemp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    // copia o mapa para words, como BitSet.toLongArray, percorrendo as sequências de segmentos marcados
+    private void copiarPalavras() {
+        Arrays.fill(words, 0);
+        for (int from = segments.nextSetBit(0); from >= 0; from = segments.nextSetBit(from)) {
+            int to = segments.nextClearBit(from);
+            while (from < to) {
+                int end = Math.min(to, ((from >>> 6) + 1) << 6); // até o fim da palavra ou da sequência
+                words[from >>> 6] |= (-1L >>> (64 - (end - from))) << from;
+                from = end;
+            }
+        }
+    }
+
+    // guarda o progresso de uma recepção interrompida; sem progresso, descarta o diário e o temporário
+    void interromper(PositionalFile data) throws IOException {
+        if (recebidos() > 0) {
+            gravar(data);
+            System.out.println("Recepção interrompida com " + recebidos() + " segmentos guardados para retomar.");
+            return;
+        }
+        data.close();
+        apagar();
+        Files.deleteIfExists(tempPath);
+    }
+
+    void apagar() throws IOException {
+        Files.deleteIfExists(path);
+    }
+}
@@ -0,0 +1,262 @@
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Métricas de uma transferência: pacotes e bytes enviados e recebidos,
+ * retransmissões, segmentos corrompidos e duplicados, bytes entregues
+ * (goodput), janela de congestionamento e histograma do RTT. Cada
+ * transferência tem as suas, abertas pelo remetente ou pelo receptor e
+ * publicadas via JMX enquanto ela durar; tudo é somado também em GLOBAL.
+ * Os contadores são {@link LongAdder}, de modo que registrar um pacote não
+ * usa travas nem disputa a mesma linha de cache entre sessões. O registro de
+ * cada pacote no console só é feito com -Dudp.trace=true.
+ */
+public class TransferMetrics implements TransferMetricsMXBean, Closeable {
+
+    static final boolean TRACE = Boolean.getBoolean("udp.trace"); // registra cada pacote no console
+    static final TransferMetrics GLOBAL = new TransferMetrics("global", null);
+    private static final Map<String, TransferMetrics> ACTIVE = new ConcurrentSkipListMap<>(); // transferências em andamento
+    private static final AtomicLong TRANSFERS = new AtomicLong();
+
+    static {
+        GLOBAL.publicar();
+    }
+
+    private final String name;
+    private final TransferMetrics parent; // GLOBAL, ou null no próprio GLOBAL
+    private final long startedAt = System.nanoTime();
+    private volatile long endedAt = -1;
+    private final LongAdder packetsSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder packetsReceived = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder retransmits = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder corrupted = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder delivered = new LongAdder(); // bytes do arquivo confirmados ou gravados
+    private final LongAdder window = new LongAdder(); // no GLOBAL, a soma das janelas em andamento
+    private final LatencyHistogram rtt = new LatencyHistogram();
+    private long lastWindow; // alterada apenas pela thread da transferência
+
+    private TransferMetrics(String name, TransferMetrics parent) {
+        this.name = name;
+        this.parent = parent;
+    }
+
+    // abre as métricas de uma transferência da sessão, publicadas até close()
+    static TransferMetrics abrir(String kind, int sessionId) {
+        TransferMetrics metrics = new TransferMetrics(
+                kind + "-" + Integer.toUnsignedString(sessionId, 16) + "-" + TRANSFERS.incrementAndGet(), GLOBAL);
+        ACTIVE.put(metrics.name, metrics);
+        metrics.publicar();
+        return metrics;
+    }
+
+    static Collection<TransferMetrics> ativas() {
+        return ACTIVE.values();
+    }
+
+    String nome() {
+        return name;
+    }
+
+    private ObjectName objectName() throws JMException {
+        return new ObjectName("udp:type=Transfer,name=" + name);
+    }
+
+    private void publicar() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName());
+        } catch (JMException e) {
+            System.err.println("Métricas " + name + " não publicadas via JMX: " + e.getMessage());
+        }
+    }
+
+    void pacoteEnviado(int bytes) {
+        packetsSent.increment();
+        bytesSent.add(bytes);
+        if (parent != null) {
+            parent.pacoteEnviado(bytes);
+        }
+    }
+
+    void pacoteRecebido(int bytes) {
+        packetsReceived.increment();
+        bytesReceived.add(bytes);
+        if (parent != null) {
+            parent.pacoteRecebido(bytes);
+        }
+    }
+
+    // segmento reenviado; timeout indica que o temporizador expirou
+    void retransmissao(boolean timeout) {
+        retransmits.increment();
+        if (timeout) {
+            timeouts.increment();
+        }
+        if (parent != null) {
+            parent.retransmissao(timeout);
+        }
+    }
+
+    void corrompido() {
+        corrupted.increment();
+        if (parent != null) {
+            parent.corrompido();
+        }
+    }
+
+    void duplicado() {
+        duplicates.increment();
+        if (parent != null) {
+            parent.duplicado();
+        }
+    }
+
+    void entregue(long bytes) {
+        delivered.add(bytes);
+        if (parent != null) {
+            parent.entregue(bytes);
+        }
+    }
+
+    void rtt(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        rtt.registrar(micros);
+        if (parent != null) {
+            parent.rtt.registrar(micros);
+        }
+    }
+
+    // janela de congestionamento atual, em segmentos
+    void janela(int segments) {
+        long delta = segments - lastWindow;
+        if (delta != 0) {
+            lastWindow = segments;
+            window.add(delta);
+            if (parent != null) {
+                parent.window.add(delta);
+            }
+        }
+    }
+
+    LatencyHistogram histogramaRtt() {
+        return rtt;
+    }
+
+    // resumo de uma linha para o console ao fim da transferência
+    String descricao() {
+        return String.format("%d pacotes enviados, %d recebidos, %d retransmitidos (%d por timeout), "
+                        + "%d corrompidos, %d duplicados, RTT p50 %.1f ms p99 %.1f ms, %.2f MB/s",
+                getPacketsSent(), getPacketsReceived(), getRetransmits(), getTimeouts(), getCorrupted(),
+                getDuplicates(), getRttP50Micros() / 1000.0, getRttP99Micros() / 1000.0,
+                getGoodputBytesPerSecond() / (1024 * 1024));
+    }
+
+    // encerra a transferência: a janela sai da soma global e as métricas deixam de ser publicadas
+    @Override
+    public void close() {
+        if (endedAt >= 0) {
+            return;
+        }
+        endedAt = System.nanoTime();
+        janela(0);
+        ACTIVE.remove(name);
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName());
+        } catch (JMException e) {
+            // não foi publicada
+        }
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return packetsReceived.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getCorrupted() {
+        return corrupted.sum();
+    }
+
+    @Override
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    @Override
+    public long getBytesDelivered() {
+        return delivered.sum();
+    }
+
+    @Override
+    public double getGoodputBytesPerSecond() {
+        long end = endedAt >= 0 ? endedAt : System.nanoTime();
+        double seconds = (end - startedAt) / 1e9;
+        return seconds <= 0 ? 0 : getBytesDelivered() / seconds;
+    }
+
+    @Override
+    public long getCongestionWindow() {
+        return window.sum();
+    }
+
+    @Override
+    public long getRttSamples() {
+        return rtt.contagem();
+    }
+
+    @Override
+    public double getRttMeanMicros() {
+        return rtt.media();
+    }
+
+    @Override
+    public long getRttP50Micros() {
+        return rtt.percentil(0.5);
+    }
+
+    @Override
+    public long getRttP99Micros() {
+        return rtt.percentil(0.99);
+    }
+
+    @Override
+    public long getRttMaxMicros() {
+        return rtt.percentil(1.0);
+    }
+}
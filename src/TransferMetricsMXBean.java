@@ -0,0 +1,38 @@
+/**
+ * Contadores de uma transferência, ou de todas juntas, publicados via JMX
+ * sob o nome udp:type=Transfer,name=...
+ */
+public interface TransferMetricsMXBean {
+
+    long getPacketsSent();
+
+    long getBytesSent();
+
+    long getPacketsReceived();
+
+    long getBytesReceived();
+
+    long getRetransmits();
+
+    long getTimeouts();
+
+    long getCorrupted();
+
+    long getDuplicates();
+
+    long getBytesDelivered();
+
+    double getGoodputBytesPerSecond();
+
+    long getCongestionWindow();
+
+    long getRttSamples();
+
+    double getRttMeanMicros();
+
+    long getRttP50Micros();
+
+    long getRttP99Micros();
+
+    long getRttMaxMicros();
+}
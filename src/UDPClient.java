@@ -1,51 +1,81 @@
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
-
-public class UDPClient {
-
-    private static final int PACKET_SIZE = 1460; // tamanho máximo de carga útil de um pacote UDP
-    private static final int WINDOW_SIZE = 10; // tamanho da janela inicial
-    private static final int BUFFER_SIZE = 1024 * 1024;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+public class UDPClient implements PacketChannel, Closeable {
+
+    private static final int WINDOW_SIZE = 1024; // janela máxima com o segmento padrão; a efetiva é definida pelo controle de congestionamento
+    private static final int PROBE_ATTEMPTS = 3; // testes de um tamanho de segmento antes de tentar o próximo
+    private static final int JUMBO_SEGMENT_SIZE = 9000 - 20 - 8 - Frame.HEADER_SIZE; // datagrama sem fragmentação num MTU de 9000 bytes
+    private static final boolean PROBE_SEGMENT = Boolean.getBoolean("udp.probe"); // descobre o maior segmento que atravessa o caminho
+    private static final int STREAMS = Integer.getInteger("udp.streams", 1); // fluxos paralelos desejados para arquivos grandes
+    private static final boolean DELTA = !"false".equalsIgnoreCase(System.getProperty("udp.delta")); // aproveita a cópia local ao baixar
+    private static final long MIN_DELTA_BYTES = 64 * 1024; // cópias locais menores são baixadas inteiras
+    private static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024; // comporta a janela máxima de segmentos
     private static final String FILES_DIRECTORY = "src/cliente/resources";
     private static final String SERVER_ADDRESS = "localhost";
     private static final int SERVER_PORT = 1997;
-    private final DatagramSocket socket;
-    private final InetAddress serverAddress;
+    private static final Consumer<SelectionKey> IGNORAR = key -> { }; // o select com ação não usa o conjunto de chaves selecionadas, que alocaria a cada espera
+    private final DatagramChannel channel;
+    private final String serverAddress;
+    private final Path filesDirectory;
+    private final Selector selector; // espera com tempo limite pelo canal não bloqueante
+    private final SelectionKey key;
+    private int timeout;
+    private final FrameChannel canal = new FrameChannel(this, 0);
+    private final RttEstimator rtt = new RttEstimator(); // tempo de espera das requisições de controle
+    private int[] streamPorts = new int[0]; // portas dos fluxos paralelos concedidos pelo servidor
 
     public UDPClient() {
+        this(SERVER_ADDRESS, SERVER_PORT, Paths.get(FILES_DIRECTORY));
+    }
+
+    public UDPClient(String serverAddress, int serverPort, Path filesDirectory) {
+        this.serverAddress = serverAddress;
+        this.filesDirectory = filesDirectory;
         try {
-            socket = new DatagramSocket();
-            serverAddress = InetAddress.getByName(SERVER_ADDRESS);
+            channel = DatagramChannel.open();
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+            channel.connect(new InetSocketAddress(serverAddress, serverPort));
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            key = channel.register(selector, SelectionKey.OP_READ);
             System.out.println("Conectando ao servidor...");
-        } catch (SocketException | UnknownHostException e) {
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
     public void createConnection() throws IOException {
-            // estabelecendo a conexão
-            threeWayHandshake();
-
             // solicita a senha do cliente
             Scanner scanner = new Scanner(System.in);
             System.out.print("Digite a senha: ");
             String password = scanner.nextLine();
 
-            // envia a senha do cliente
-            byte[] passwordBytes = password.getBytes();
-            DatagramPacket passwordPacket = new DatagramPacket(passwordBytes, passwordBytes.length, serverAddress, SERVER_PORT);
-            socket.send(passwordPacket);
+            // estabelecendo a conexão
+            conectar(password);
 
             String operationType;
 
-            byte[] operationTypeBytes;
             do {
                 // solicita o tipo de operação que o cliente deseja realizar
                 System.out.println("Selecione o tipo de operação:");
@@ -55,39 +85,73 @@ public class UDPClient {
                 operationType = scanner.nextLine();
 
                 if (operationType.equalsIgnoreCase("upload")) {
-                    realizarUpload(socket, serverAddress, scanner);
+                    realizarUpload(scanner);
                 } else if (operationType.equalsIgnoreCase("download")) {
-                    realizarDownload(socket, serverAddress, scanner);
+                    realizarDownload(scanner);
                 } else {
                     System.out.println("Operação inválida.");
                 }
             } while (!operationType.equalsIgnoreCase("upload") && !operationType.equalsIgnoreCase("download"));
     }
 
-    private void threeWayHandshake() throws IOException {
-        // envia um pacote SYN para estabelecer a conexão com o servidor
-        byte[] synPacketData = "SYN".getBytes();
-        DatagramPacket synPacket = new DatagramPacket(synPacketData, synPacketData.length, serverAddress, SERVER_PORT);
-        socket.send(synPacket);
-
-        // aguarda a resposta do servidor
-        byte[] synAckPacketData = new byte[BUFFER_SIZE];
-        DatagramPacket synAckPacket = new DatagramPacket(synAckPacketData, synAckPacketData.length);
-        socket.receive(synAckPacket);
-
-        // verifica se a resposta do servidor é um pacote SYN-ACK
-        String synAckPacketPayload = new String(synAckPacket.getData(), 0, synAckPacket.getLength());
-        if (!synAckPacketPayload.equals("SYN-ACK")) {
-            throw new IOException("Resposta inválida do servidor: " + synAckPacketPayload);
+    // abre a sessão e se autentica informando o segmento escolhido; uma senha incorreta é respondida com ERROR
+    public void conectar(String password) throws IOException {
+        int maxSegmentSize = threeWayHandshake();
+        int segmentSize = PROBE_SEGMENT ? descobrirSegmento(maxSegmentSize) : maxSegmentSize;
+        canal.setSegmentSize(segmentSize);
+        canal.request(Frame.AUTH, segmentSize, password, rtt, Frame.AUTH_OK);
+        System.out.println("Segmento de " + segmentSize + " bytes.");
+        if (STREAMS > 1) {
+            negociarFluxos(STREAMS);
+        }
+    }
+
+    // pede fluxos paralelos; o servidor concede no máximo um por socket de fluxo e informa as portas
+    private void negociarFluxos(int streams) throws IOException {
+        canal.request(Frame.PARALLEL, streams, "", rtt, Frame.STREAMS);
+        ByteBuffer reply = canal.received();
+        streamPorts = new int[Math.min((int) canal.offset(), canal.payloadLength() / Short.BYTES)];
+        for (int i = 0; i < streamPorts.length; i++) {
+            streamPorts[i] = reply.getShort(Frame.HEADER_SIZE + i * Short.BYTES) & 0xFFFF;
         }
+        System.out.println(streamPorts.length + " fluxos paralelos concedidos.");
+    }
 
-        // envia um pacote ACK para confirmar a conexão com o servidor
-        byte[] ackPacketData = "ACK".getBytes();
-        DatagramPacket ackPacket = new DatagramPacket(ackPacketData, ackPacketData.length, serverAddress, SERVER_PORT);
-        socket.send(ackPacket);
+    // abre uma sessão de fluxo e a junta à transferência em andamento na sessão principal
+    private void juntar(int parentSessionId, int stream, int segmentSize) throws IOException {
+        threeWayHandshake();
+        canal.setSegmentSize(segmentSize);
+        canal.sendBuffer().putInt(Frame.HEADER_SIZE, stream);
+        canal.request(Frame.JOIN, 0, parentSessionId, Integer.BYTES, rtt, Frame.AUTH_OK);
     }
 
-//    private static void realizarUpload(DatagramSocket socket, InetAddress serverAddress, Scanner scanner) throws IOException {
+    // retorna o maior segmento aceito pelos dois lados
+    private int threeWayHandshake() throws IOException {
+        // envia quadros SYN até o servidor responder com o SYN_ACK da nova sessão; o SYN_ACK
+        // confirma a compressão dos segmentos se ela foi pedida e o servidor a aceita
+        int flags = SegmentCompressor.REQUESTED ? Frame.FLAG_COMPRESSED : 0;
+        canal.request(Frame.SYN, flags, Frame.maxSegmentSize(), "", rtt, Frame.SYN_ACK);
+        canal.setSessionId(Frame.sessionId(canal.received()));
+        canal.setCompressao((canal.flags() & Frame.FLAG_COMPRESSED) != 0);
+        long maxSegmentSize = Math.max(Frame.MIN_SEGMENT_SIZE, Math.min(canal.offset(), Frame.maxSegmentSize()));
+
+        // envia um quadro ACK para confirmar a conexão com o servidor
+        canal.send(Frame.ACK, 0);
+        return (int) maxSegmentSize;
+    }
+
+    // testa segmentos de tamanho decrescente, a partir do maior aceito, até um atravessar o caminho
+    private int descobrirSegmento(int maxSegmentSize) throws IOException {
+        int[] candidates = { maxSegmentSize, JUMBO_SEGMENT_SIZE, Frame.DEFAULT_SEGMENT_SIZE };
+        for (int candidate : candidates) {
+            if (candidate <= maxSegmentSize && canal.probe(candidate, PROBE_ATTEMPTS, rtt)) {
+                return candidate;
+            }
+        }
+        return Frame.MIN_SEGMENT_SIZE;
+    }
+
+//    private static void realizarUpload(PacketChannel canal, Scanner scanner) throws IOException {
 //        // solicita o nome do arquivo a ser enviado
 //        System.out.print("Digite o nome do arquivo a ser enviado: ");
 //        String fileName = scanner.nextLine();
@@ -112,189 +176,310 @@ public class UDPClient {
 //        System.out.println("Arquivo \"" + fileName + "\" enviado para o servidor.");
 //    }
 
-    private static void realizarUpload(DatagramSocket socket, InetAddress serverAddress, Scanner scanner) throws IOException {
+    private void realizarUpload(Scanner scanner) throws IOException {
         // solicita o nome do arquivo a ser enviado
         System.out.print("Digite o nome do arquivo a ser enviado: ");
         String fileName = scanner.nextLine();
 
 
-        Path filePath = Paths.get(FILES_DIRECTORY, fileName);
-        if (Files.exists(filePath)) {
-
-            // envia o nome do arquivo para o servidor
-            byte[] fileNameBytes = fileName.getBytes();
-            DatagramPacket fileNamePacket = new DatagramPacket(fileNameBytes, fileNameBytes.length, serverAddress, SERVER_PORT);
-            socket.send(fileNamePacket);
-
-            byte[] ackNameFileData = new byte[Integer.BYTES];
-            DatagramPacket ackNameFilePacket = new DatagramPacket(ackNameFileData, ackNameFileData.length);
-            socket.setSoTimeout(1000); // tempo de espera para ACK
-            socket.receive(ackNameFilePacket);
-            System.out.println("ACK recebido para o pacote do nome do arquivo");
-
-            byte[] fileBytes = Files.readAllBytes(filePath);
-            int fileSize = fileBytes.length;
-            int numPackets = (int) Math.ceil((double) fileSize / PACKET_SIZE);
-            int lastPacketSize = fileSize % PACKET_SIZE;
-            if (lastPacketSize == 0) {
-                lastPacketSize = PACKET_SIZE;
-            }
-            int base = 0; // base da janela
-            int nextSeqNum = 0; // próximo número de sequência a ser enviado
-            int unAckedSeqNum = 0; // próximo número de sequência esperado para ACK
-            int packetsSent = 0; // número de pacotes enviados
-
-
-            // enviar tamanho do arquivo para o cliente
-            ByteBuffer sizeBuffer = ByteBuffer.allocate(Integer.BYTES);
-            sizeBuffer.putInt(fileSize);
-            DatagramPacket sizePacket = new DatagramPacket(sizeBuffer.array(), sizeBuffer.array().length, serverAddress, SERVER_PORT);
-            socket.send(sizePacket);
-            System.out.println("Tamanho do arquivo enviado: " + fileSize + " bytes");
-
-            byte[] ackLengthFileData = new byte[Integer.BYTES];
-            DatagramPacket ackLengthFilePacket = new DatagramPacket(ackLengthFileData, ackLengthFileData.length);
-            socket.setSoTimeout(1000); // tempo de espera para ACK
-            socket.receive(ackLengthFilePacket);
-            System.out.println("ACK recebido para o pacote do tamanho do arquivo");
-
-            while (unAckedSeqNum < numPackets) {
-                // enviar pacotes ainda não confirmados e que estão dentro da janela
-                while (nextSeqNum < base + WINDOW_SIZE && nextSeqNum < numPackets) {
-                    int packetSize = nextSeqNum == numPackets - 1 ? lastPacketSize : PACKET_SIZE;
-                    byte[] packetData = new byte[packetSize];
-                    System.arraycopy(fileBytes, nextSeqNum * PACKET_SIZE, packetData, 0, packetSize);
-                    ByteBuffer packetBuffer = ByteBuffer.allocate(packetSize + Integer.BYTES);
-                    packetBuffer.putInt(nextSeqNum);
-                    packetBuffer.put(packetData);
-                    DatagramPacket packet = new DatagramPacket(packetBuffer.array(), packetBuffer.array().length, serverAddress, SERVER_PORT);
-                    socket.send(packet);
-                    System.out.println("Enviando pacote #" + nextSeqNum);
-                    nextSeqNum++;
-                    packetsSent++;
-                }
-
-                // aguardar ACK dos pacotes enviados
-                while (packetsSent > unAckedSeqNum) {
-                    byte[] ackData = new byte[Integer.BYTES];
-                    DatagramPacket ackPacket = new DatagramPacket(ackData, ackData.length);
-                    try {
-                        socket.setSoTimeout(1000); // tempo de espera para ACK
-                        socket.receive(ackPacket);
-                        int ackSeqNum = ByteBuffer.wrap(ackPacket.getData(), 0, ackPacket.getLength()).getInt();
-                        System.out.println("ACK recebido para o pacote #" + ackSeqNum);
-                        if (ackSeqNum >= base) {
-                            base = ackSeqNum + 1; // atualizar a base da janela
-                        }
-                    } catch (SocketTimeoutException e) {
-                        // timeout expirado, reenviar pacotes ainda não confirmados
-                        System.out.println("Timeout expirado. Reenviando pacotes...");
-                        nextSeqNum = base;
-                        packetsSent = 0;
-                    }
-                    unAckedSeqNum++;
-                }
-            }
-            System.out.println("Arquivo \"" + fileName + "\" enviado para o cliente.");
+        if (Files.exists(filesDirectory.resolve(fileName))) {
+            enviarArquivo(fileName);
+            System.out.println("Arquivo \"" + fileName + "\" enviado para o servidor.");
         } else {
             System.out.println("Arquivo não encontrado: " + fileName);
         }
     }
 
-    private static void realizarDownload(DatagramSocket socket, InetAddress serverAddress, Scanner scanner) throws IOException {
+    private void realizarDownload(Scanner scanner) throws IOException {
         // recebe a lista de arquivos disponíveis no servidor
-        byte[] filesListBytes = new byte[BUFFER_SIZE];
-        DatagramPacket filesListPacket = new DatagramPacket(filesListBytes, filesListBytes.length);
-        socket.receive(filesListPacket);
-        String filesList = new String(filesListPacket.getData(), 0, filesListPacket.getLength());
+        List<String> files = listarArquivos();
         System.out.println("Arquivos disponíveis no servidor:");
-        System.out.println(filesList);
+        for (String line : files) {
+            String[] fields = line.split("\t");
+            System.out.println(fields.length > 1 ? fields[0] + " (" + fields[1] + " bytes)" : fields[0]);
+        }
 
         // solicita o nome do arquivo a ser baixado
         System.out.print("Digite o nome do arquivo a ser baixado: ");
         String fileName = scanner.nextLine();
 
-        // envia o nome do arquivo para o servidor
-        byte[] fileNameBytes = fileName.getBytes();
-        DatagramPacket fileNamePacket = new DatagramPacket(fileNameBytes, fileNameBytes.length, serverAddress, SERVER_PORT);
-        socket.send(fileNamePacket);
-
-        // recebe o tamanho do arquivo selecionado do servidor
-        byte[] fileSizeBytes = new byte[4];
-        DatagramPacket fileSizePacket = new DatagramPacket(fileSizeBytes, fileSizeBytes.length);
-        socket.receive(fileSizePacket);
-        int fileSize = ByteBuffer.wrap(fileSizeBytes).getInt();
-
-        // envia confirmação de recebimento do tamanho do arquivo
-        DatagramPacket ackPacket = new DatagramPacket(new byte[] { 1 }, 1, serverAddress, SERVER_PORT);
-        socket.send(ackPacket);
-
-        // cria buffer para armazenar os dados do arquivo recebidos
-        byte[] fileBytes = new byte[fileSize];
-
-        // inicia janela deslizante com tamanho definido pela variável WINDOW_SIZE
-        int seqNum = 0;
-        int windowBase = 0;
-        int lastAckReceived = 0;
-        boolean endOfFile = false;
-
-        // recebe os pacotes do servidor enquanto a janela deslizante não chega ao final do arquivo
-        while (!endOfFile) {
-            // envia acks para os pacotes já recebidos e processados pela janela deslizante
-            while (seqNum <= lastAckReceived + WINDOW_SIZE && seqNum < fileSize / PACKET_SIZE) {
-                ackPacket = new DatagramPacket(intToBytes(seqNum), 4, serverAddress, SERVER_PORT);
-                socket.send(ackPacket);
-                seqNum++;
-            }
+        // um padrão glob que não é o nome de um arquivo baixa todos os que correspondem a ele
+        if (files.stream().noneMatch(line -> nome(line).equals(fileName)) && fileName.matches(".*[*?\\[{].*")) {
+            List<String> names = baixarLote(fileName);
+            System.out.println(names.size() + " arquivos de \"" + fileName + "\" baixados do servidor e salvos no cliente.");
+            return;
+        }
+        baixarArquivo(fileName);
+        System.out.println("Arquivo \"" + fileName + "\" baixado do servidor e salvo no cliente.");
+    }
+
+    // anuncia nome e tamanho do arquivo e envia o conteúdo, em intervalos paralelos se foram concedidos fluxos
+    public void enviarArquivo(String fileName) throws IOException {
+        Path filePath = filesDirectory.resolve(fileName);
+        int segmentSize = canal.segmentSize();
+        int streams = ParallelTransfer.fluxos(Files.size(filePath), segmentSize, streamPorts.length);
+        if (streams <= 1) {
+            new FileSender(canal, segmentSize, janela(segmentSize)).enviar(filePath, fileName);
+            return;
+        }
+        try (ParallelTransfer transfer = ParallelTransfer.paraEnvio(filePath, segmentSize, streams)) {
+            canal.request(Frame.FILE_INFO, Frame.FLAG_PARALLEL, transfer.fileSize(),
+                    canal.escreverAnuncio(transfer.identity(), fileName), rtt, Frame.FILE_INFO_ACK);
+            transferirEmParalelo(transfer, fileName);
+            // confirmação única: o servidor publica o arquivo antes de responder
+            canal.request(Frame.FIN, streams, "", rtt, Frame.FIN_ACK);
+        }
+    }
 
-            // recebe pacote do servidor
-            byte[] packetBytes = new byte[PACKET_SIZE];
-            DatagramPacket packet = new DatagramPacket(packetBytes, packetBytes.length);
-            socket.receive(packet);
-
-            // extrai informações do pacote (número de sequência, dados)
-            int packetSeqNum = ByteBuffer.wrap(packetBytes, 0, 4).getInt();
-            byte[] packetData = Arrays.copyOfRange(packetBytes, 4, packet.getLength());
-
-            // atualiza janela deslizante
-            if (packetSeqNum >= windowBase && packetSeqNum < windowBase + WINDOW_SIZE) {
-                int dataOffset = packetSeqNum * PACKET_SIZE;
-                System.arraycopy(packetData, 0, fileBytes, dataOffset, packetData.length);
-                if (packetSeqNum == windowBase) {
-                    int numPacketsProcessed = 1;
-                    while (windowBase < fileSize / PACKET_SIZE && numPacketsProcessed < WINDOW_SIZE) {
-                        if (windowBase + numPacketsProcessed == seqNum) {
-                            break;
-                        }
-                        int nextPacketOffset = (windowBase + numPacketsProcessed) * PACKET_SIZE;
-                        if (fileBytes[nextPacketOffset] != 0) {
-                            numPacketsProcessed++;
-                        } else {
-                            break;
-                        }
-                    }
-                    lastAckReceived = windowBase + numPacketsProcessed - 1;
-                    windowBase += numPacketsProcessed;
+    public List<String> listarArquivos() throws IOException {
+        return listarArquivos("");
+    }
+
+    // pede a lista página por página, cada uma a partir do último nome recebido, até o servidor
+    // indicar que não há mais; cada linha traz nome, tamanho e data separados por tabulação
+    public List<String> listarArquivos(String prefix) throws IOException {
+        List<String> files = new ArrayList<>();
+        String cursor = "";
+        for (int page = 0; ; page++) {
+            do {
+                canal.request(Frame.LIST_REQUEST, 0, page, prefix + "\n" + cursor, rtt, Frame.LIST);
+            } while (canal.offset() != page); // resposta atrasada de uma página anterior
+            int before = files.size();
+            for (String line : canal.payloadString().split("\n")) {
+                if (!line.isEmpty()) {
+                    files.add(line);
                 }
-                if (windowBase >= fileSize / PACKET_SIZE) {
-                    endOfFile = true;
+            }
+            if ((canal.flags() & Frame.FLAG_MORE) == 0 || files.size() == before) {
+                return files;
+            }
+            cursor = nome(files.get(files.size() - 1));
+        }
+    }
+
+    // nome do arquivo numa linha da lista
+    static String nome(String line) {
+        int tab = line.indexOf('\t');
+        return tab < 0 ? line : line.substring(0, tab);
+    }
+
+    public void baixarArquivo(String fileName) throws IOException {
+        Path filePath = filesDirectory.resolve(fileName);
+        if (DELTA && Files.isRegularFile(filePath) && Files.size(filePath) >= MIN_DELTA_BYTES) {
+            aproveitarCopiaLocal(fileName, filePath);
+        }
+
+        // pede o arquivo; o servidor responde com o anúncio do tamanho ou com ERROR
+        canal.request(Frame.DOWNLOAD, 0, fileName, rtt, Frame.FILE_INFO);
+
+        // recebe o conteúdo do arquivo direto no disco
+        FileIdentity identity = canal.identidadeAnunciada();
+        int segmentSize = canal.segmentSize();
+        if ((canal.flags() & Frame.FLAG_PARALLEL) == 0) {
+            new FileReceiver(canal, segmentSize, janela(segmentSize)).receber(filePath, identity);
+            return;
+        }
+        int streams = ParallelTransfer.fluxos(identity.size, segmentSize, streamPorts.length);
+        try (ParallelTransfer transfer = ParallelTransfer.paraRecepcao(filePath, identity, segmentSize, streams)) {
+            transferirEmParalelo(transfer, fileName);
+            // confirmação única: o arquivo é publicado antes de responder ao aviso de fim do servidor
+            transfer.aguardarFim(canal);
+            transfer.publicar();
+            canal.send(Frame.FIN_ACK, streams);
+        }
+    }
+
+    /**
+     * Sincronização por diferenças: baixa as assinaturas dos blocos do
+     * arquivo do servidor, copia os blocos encontrados na cópia local para o
+     * temporário e os registra no diário, de modo que o download seguinte
+     * retoma a recepção e pede apenas os segmentos que faltam.
+     */
+    private void aproveitarCopiaLocal(String fileName, Path filePath) throws IOException {
+        canal.request(Frame.DOWNLOAD, Frame.FLAG_SIGNATURES, 0, fileName, rtt, Frame.FILE_INFO);
+        int segmentSize = canal.segmentSize();
+        BlockSignatures signatures;
+        Path directory = Files.createTempDirectory("udp-assinaturas");
+        try {
+            Path signaturesPath = directory.resolve("assinaturas");
+            new FileReceiver(canal, segmentSize, janela(segmentSize)).receber(signaturesPath, canal.identidadeAnunciada());
+            signatures = BlockSignatures.ler(signaturesPath);
+        } finally {
+            apagarDiretorio(directory);
+        }
+        if (signatures.segmentSize != segmentSize) {
+            return;
+        }
+
+        // uma recepção interrompida do mesmo conteúdo já tem o seu próprio progresso
+        TransferJournal journal = TransferJournal.abrir(filePath, signatures.identity, segmentSize);
+        if (journal.retomado()) {
+            return;
+        }
+        Path tempPath = FileReceiver.temporario(filePath);
+        long reused;
+        try (FileChannel old = FileChannel.open(filePath, StandardOpenOption.READ);
+             FileChannel part = FileReceiver.criarTemporario(tempPath, signatures.identity.size)) {
+            reused = signatures.semear(old, part, journal);
+            journal.gravar(PositionalFile.of(part));
+        }
+        if (reused == 0) {
+            Files.deleteIfExists(tempPath);
+        }
+        System.out.println("Sincronização por diferenças: " + reused + " de " + signatures.identity.size
+                + " bytes aproveitados da cópia local.");
+    }
+
+    /**
+     * Baixa numa única sessão todos os arquivos do servidor cujo nome
+     * corresponde ao padrão glob: primeiro o manifesto do lote e depois o
+     * conteúdo de todos os arquivos concatenados numa só transferência,
+     * gravado direto no temporário de cada arquivo. Retorna os nomes baixados.
+     */
+    public List<String> baixarLote(String pattern) throws IOException {
+        int segmentSize = canal.segmentSize();
+        Path directory = Files.createTempDirectory("udp-lote");
+        List<Path> temps = new ArrayList<>();
+        boolean published = false;
+        try {
+            canal.request(Frame.DOWNLOAD, Frame.FLAG_BATCH, 0, pattern, rtt, Frame.FILE_INFO);
+            Path manifestPath = directory.resolve("manifesto");
+            new FileReceiver(canal, segmentSize, janela(segmentSize)).receber(manifestPath, canal.identidadeAnunciada());
+            BatchManifest manifest = BatchManifest.ler(Files.readAllBytes(manifestPath));
+            FileIdentity identity = manifest.identidade();
+
+            canal.request(Frame.DOWNLOAD, Frame.FLAG_BATCH, identity.fingerprint, pattern, rtt, Frame.FILE_INFO);
+            if (!identity.equals(canal.identidadeAnunciada())) {
+                canal.send(Frame.ERROR, 0, "Conteúdo diferente do manifesto do lote.");
+                throw new IOException("Conteúdo diferente do manifesto do lote.");
+            }
+            for (int i = 0; i < manifest.names.size(); i++) {
+                Path temp = FileReceiver.temporario(filesDirectory.resolve(manifest.names.get(i)));
+                temps.add(temp);
+                FileReceiver.criarTemporario(temp, manifest.tamanho(i)).close();
+            }
+            // o diário do lote fica no diretório temporário: um lote interrompido é pedido de novo por inteiro
+            TransferJournal journal = TransferJournal.abrir(directory.resolve("lote"), identity, segmentSize);
+            try (ConcatenatedFile files = manifest.abrir(filesDirectory, FileReceiver::temporario,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                new FileReceiver(canal, segmentSize, janela(segmentSize)).receber(files, identity.size, 0, identity.size, journal);
+            }
+            for (String name : manifest.names) {
+                Path filePath = filesDirectory.resolve(name);
+                FileReceiver.publicar(FileReceiver.temporario(filePath), filePath);
+            }
+            published = true;
+            return manifest.names;
+        } finally {
+            if (!published) {
+                for (Path temp : temps) {
+                    Files.deleteIfExists(temp);
                 }
             }
+            apagarDiretorio(directory);
+        }
+    }
 
-            // envia ack para o último pacote processado pela janela deslizante
-            ackPacket = new DatagramPacket(intToBytes(lastAckReceived), 4, serverAddress, SERVER_PORT);
-            socket.send(ackPacket);
+    private static void apagarDiretorio(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
         }
+        Files.delete(directory);
+    }
 
-        // salva o arquivo no cliente
-        Path filePath = Paths.get(FILES_DIRECTORY, fileName);
-        Files.write(filePath, fileBytes);
+    // abre uma sessão por intervalo, cada uma com o seu socket e a sua thread, e aguarda todas
+    // atendendo a sessão principal
+    private void transferirEmParalelo(ParallelTransfer transfer, String fileName) throws IOException {
+        System.out.println("Transferência em " + transfer.streams() + " fluxos paralelos.");
+        List<UDPClient> clients = new ArrayList<>();
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService threads = Executors.newFixedThreadPool(transfer.streams(), task -> {
+            Thread thread = new Thread(task, "fluxo-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (int stream = 0; stream < transfer.streams(); stream++) {
+                UDPClient client = new UDPClient(serverAddress, streamPorts[stream], filesDirectory);
+                clients.add(client);
+                int index = stream;
+                threads.execute(() -> client.transferirIntervalo(canal.sessionId(), transfer, index, fileName));
+            }
+            transfer.aguardar(canal, 0, null);
+        } finally {
+            threads.shutdownNow();
+            // fechar os canais também interrompe os fluxos que ainda esperam por quadros
+            for (UDPClient client : clients) {
+                client.close();
+            }
+        }
+    }
 
-        System.out.println("Arquivo \"" + fileName + "\" baixado do servidor e salvo no cliente.");
+    private void transferirIntervalo(int parentSessionId, ParallelTransfer transfer, int stream, String fileName) {
+        try {
+            juntar(parentSessionId, stream, transfer.segmentSize());
+            transfer.juntar(stream);
+            int segmentSize = transfer.segmentSize();
+            if (transfer.recebendo()) {
+                canal.request(Frame.DOWNLOAD, 0, fileName, rtt, Frame.FILE_INFO);
+                new FileReceiver(canal, segmentSize, janela(segmentSize)).receber(transfer.file(),
+                        transfer.fileSize(), transfer.inicio(stream), transfer.fim(stream), transfer.journal());
+            } else {
+                new FileSender(canal, segmentSize, janela(segmentSize)).enviar(transfer.file(), fileName,
+                        transfer.identity(), transfer.inicio(stream), transfer.fim(stream));
+            }
+            transfer.concluir(stream);
+        } catch (IOException | RuntimeException e) {
+            transfer.falhar(e);
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer datagram) throws IOException {
+        while (channel.write(datagram) == 0) {
+            // buffer de envio do socket cheio: aguarda espaço
+            key.interestOps(SelectionKey.OP_WRITE);
+            selector.select(IGNORAR);
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    @Override
+    public int poll(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (channel.read(buffer) == 0) {
+            long waitMillis = 0;
+            if (timeout > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return -1;
+                }
+                waitMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+            }
+            selector.select(IGNORAR, waitMillis);
+        }
+        buffer.flip();
+        return buffer.limit();
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    // mantém em bytes a janela máxima definida para o segmento padrão
+    private static int janela(int segmentSize) {
+        long window = (long) WINDOW_SIZE * Frame.DEFAULT_SEGMENT_SIZE / segmentSize;
+        return (int) Math.max(2 * CongestionController.INITIAL_WINDOW, Math.min(WINDOW_SIZE, window));
     }
 
-    private static byte[] intToBytes(int value) {
-        return ByteBuffer.allocate(4).putInt(value).array();
+    @Override
+    public void close() throws IOException {
+        selector.close();
+        channel.close();
     }
 
     public static void main(String[] args) throws IOException {
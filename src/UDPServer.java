@@ -1,173 +1,268 @@
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
-
-public class UDPServer {
-
-    private static final int PACKET_SIZE = 1460; // tamanho máximo de carga útil de um pacote UDP
-    private static final int WINDOW_SIZE = 10; // tamanho da janela inicial
-    private static final int BUFFER_SIZE = 1024 * 1024;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+public class UDPServer implements Closeable {
+
+    private static final int WINDOW_SIZE = 1024; // janela máxima com o segmento padrão; a efetiva é definida pelo controle de congestionamento
+    private static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024; // comporta a janela máxima de segmentos
+    private static final int POOL_BYTES = 16 * 1024 * 1024; // memória dos datagramas aguardando leitura nas sessões
+    private static final int MIN_POOL_CAPACITY = 64;
     private static final String FILES_DIRECTORY = "src/resources";
-    private static final String PASSWORD = "123456";
-    private static final String NO_PASSWORD = "NO_PASSWORD";
-    private final DatagramSocket socket;
+    private static final int SERVER_PORT = 1997;
+    private static final int STREAM_SOCKETS = Math.max(0, Math.min(ParallelTransfer.MAX_STREAMS, // sockets dos fluxos paralelos, um por núcleo
+            Integer.getInteger("udp.stream.sockets", Runtime.getRuntime().availableProcessors())));
+    private static final int MAX_SESSIONS = Math.max(1, Integer.getInteger("udp.max.sessions", 256)); // sessões simultâneas, incluindo as de fluxo
+    private static final int WORKER_KEEP_ALIVE = 60; // segundos que uma thread ociosa aguarda uma nova sessão
+    static final String PASSWORD = "123456";
+    static final String NO_PASSWORD = "NO_PASSWORD";
+    private final DatagramChannel channel;
+    private final DatagramChannel[] streamChannels; // portas efêmeras, uma por fluxo paralelo
+    private final Path filesDirectory;
+    private final FileCatalog catalog;
+    private final BlockCache cache; // blocos dos arquivos enviados, compartilhados entre as sessões; null se desativado
+    private final MetricsEndpoint metrics; // null sem -Dudp.metrics.port
+    private final SendScheduler scheduler; // banda dos envios dividida entre os clientes
+    private final BufferPool pool;
+    private final Map<InetSocketAddress, ServerSession> sessionsByAddress = new ConcurrentHashMap<>();
+    private final Map<Integer, ServerSession> sessions = new ConcurrentHashMap<>();
+    private final ExecutorService workers;
 
     public UDPServer() {
+        this(SERVER_PORT, Paths.get(FILES_DIRECTORY));
+    }
+
+    // porta 0 escolhe uma porta livre, informada por port()
+    public UDPServer(int port, Path filesDirectory) {
+        this.filesDirectory = filesDirectory;
+        // cada buffer comporta um quadro de dados com o maior segmento aceito
+        int poolBufferSize = Frame.HEADER_SIZE + Frame.maxSegmentSize();
+        this.pool = new BufferPool(poolBufferSize, Math.max(MIN_POOL_CAPACITY, POOL_BYTES / poolBufferSize));
         try {
-            socket = new DatagramSocket(1997);
+            catalog = new FileCatalog(filesDirectory);
+            cache = BlockCache.configurado();
+            scheduler = SendScheduler.configurado();
+            metrics = MetricsEndpoint.configurado(cache, scheduler);
+            channel = abrirCanal(port);
+            scheduler.publicar(porta(channel));
+            streamChannels = new DatagramChannel[STREAM_SOCKETS];
+            for (int i = 0; i < streamChannels.length; i++) {
+                streamChannels[i] = abrirCanal(0);
+            }
+            AtomicInteger sessionCount = new AtomicInteger();
+            // uma thread por sessão, no máximo MAX_SESSIONS; as ociosas são encerradas depois de um tempo
+            workers = new ThreadPoolExecutor(0, MAX_SESSIONS, WORKER_KEEP_ALIVE, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), task -> {
+                Thread thread = new Thread(task, "sessao-" + sessionCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
             System.out.println("Servidor iniciado. Aguardando conexões...");
-        } catch (SocketException e) {
+            if (metrics != null) {
+                System.out.println("Métricas em http://localhost:" + metrics.port() + "/metrics");
+            }
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public void acceptConnections() throws IOException {
-        // aguarda a conexão do cliente
-        byte[] synPacketData = new byte[3];
-        DatagramPacket synPacket = new DatagramPacket(synPacketData, synPacketData.length);
-        socket.receive(synPacket);
+    private static DatagramChannel abrirCanal(int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+        channel.bind(new InetSocketAddress(port));
+        return channel;
+    }
 
-        // verifica se é um pacote SYN
-        String synPacketPayload = new String(synPacket.getData(), 0, synPacket.getLength());
-        if (!synPacketPayload.equals("SYN")) {
-            throw new IOException("Solicitação Inválida.");
-        }
+    public int port() {
+        return porta(channel);
+    }
 
-        // Cria o pacote SYN-ACK
-        String synAckPayload = "SYN-ACK";
-        byte[] synAckPacketData = synAckPayload.getBytes();
-        DatagramPacket synAckPacket = new DatagramPacket(synAckPacketData, synAckPacketData.length, synPacket.getAddress(), synPacket.getPort());
+    private static int porta(DatagramChannel channel) {
+        return ((InetSocketAddress) channel.socket().getLocalSocketAddress()).getPort();
+    }
 
-        // Envia o pacote SYN-ACK para o cliente
-        socket.send(synAckPacket);
+    // portas dos sockets dos fluxos paralelos, informadas ao cliente no quadro STREAMS
+    int[] portasDosFluxos() {
+        int[] ports = new int[streamChannels.length];
+        for (int i = 0; i < ports.length; i++) {
+            ports[i] = porta(streamChannels[i]);
+        }
+        return ports;
+    }
 
-        // aguarda o ack do cliente
-        byte[] ackPacketData = new byte[3];
-        DatagramPacket ackPacket = new DatagramPacket(ackPacketData, ackPacketData.length);
-        socket.receive(ackPacket);
+    ServerSession sessao(int sessionId) {
+        return sessions.get(sessionId);
+    }
 
-        // verifica se é um pacote ACK
-        String ackPacketPayload = new String(ackPacket.getData(), 0, ackPacket.getLength());
-        if (!ackPacketPayload.equals("ACK")) {
-            throw new IOException("Solicitação Inválida.");
+    // atende os clientes até o servidor ser fechado; cada socket dos fluxos paralelos tem o seu
+    // próprio despachante, para que os fluxos não disputem uma única thread
+    public void acceptConnections() throws IOException {
+        for (DatagramChannel streamChannel : streamChannels) {
+            Thread dispatcher = new Thread(() -> {
+                try {
+                    despachar(streamChannel);
+                } catch (IOException e) {
+                    System.err.println("Erro no despachante da porta " + porta(streamChannel) + ": " + e.getMessage());
+                }
+            }, "despachante-" + porta(streamChannel));
+            dispatcher.setDaemon(true);
+            dispatcher.start();
         }
+        despachar(channel);
+    }
 
-        // obtém a senha do cliente
-        byte[] passwordBuffer = new byte[BUFFER_SIZE];
-        DatagramPacket passwordPacket = new DatagramPacket(passwordBuffer, passwordBuffer.length);
-        socket.receive(passwordPacket);
-        String password = new String(passwordPacket.getData(), 0, passwordPacket.getLength());
+    private void despachar(DatagramChannel channel) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocateDirect(Frame.MAX_DATAGRAM_SIZE);
+        ByteBuffer refusal = null; // ERROR enviado aos SYN além do limite de sessões
+        Integer sessionKey = null; // identificador do último quadro, para não alocar um novo a cada busca
         while (true) {
-            if (password.equals(PASSWORD)) {
-                System.out.println("Conexão estabelecida. Cliente autorizado.");
-                receberArquivo(socket, synPacket.getAddress(), synPacket.getPort());
-            } else if (password.equals(NO_PASSWORD)) {
-                // envia a lista de arquivos para o cliente
-                String fileList = listarArquivos();
-                byte[] fileListBytes = fileList.getBytes();
-                DatagramPacket fileListPacket = new DatagramPacket(fileListBytes, fileListBytes.length,
-                        synPacket.getAddress(), synPacket.getPort());
-                socket.send(fileListPacket);
-
-                // aguarda a seleção do arquivo pelo cliente
-                byte[] fileSelectionBuffer = new byte[BUFFER_SIZE];
-                DatagramPacket fileSelectionPacket = new DatagramPacket(fileSelectionBuffer, fileSelectionBuffer.length);
-                socket.receive(fileSelectionPacket);
-                String fileName = new String(fileSelectionPacket.getData(), 0, fileSelectionPacket.getLength());
+            // aguarda o próximo datagrama de qualquer cliente
+            frame.clear();
+            InetSocketAddress clientAddress;
+            try {
+                clientAddress = (InetSocketAddress) channel.receive(frame);
+            } catch (ClosedChannelException e) {
+                return;
+            }
+            frame.flip();
+            if (!Frame.isValid(frame, frame.limit())) {
+                if (TransferMetrics.TRACE) {
+                    System.out.println("Pacote de " + clientAddress + " ignorado: quadro inválido.");
+                }
+                continue;
+            }
 
-                // envia o arquivo selecionado pelo cliente
-                enviarArquivo(fileName, synPacket.getAddress(), synPacket.getPort(), socket);
+            // um SYN abre uma sessão nova (ou repete o da sessão já aberta para o endereço);
+            // os demais quadros são encaminhados pelo identificador da sessão
+            ServerSession session;
+            if (Frame.type(frame) == Frame.SYN) {
+                session = sessionsByAddress.get(clientAddress);
+                if (session == null) {
+                    // acima do limite, o SYN é recusado sem criar sessão; o executor limitado cobre a corrida
+                    // entre os despachantes
+                    if (sessions.size() >= MAX_SESSIONS) {
+                        refusal = recusar(channel, clientAddress, refusal);
+                        continue;
+                    }
+                    session = new ServerSession(this, channel, pool, clientAddress, novoIdentificador());
+                    sessionsByAddress.put(clientAddress, session);
+                    sessions.put(session.sessionId(), session);
+                    try {
+                        workers.execute(session);
+                    } catch (RejectedExecutionException e) {
+                        sessions.remove(session.sessionId());
+                        sessionsByAddress.remove(clientAddress);
+                        refusal = recusar(channel, clientAddress, refusal);
+                        continue;
+                    }
+                }
             } else {
-                System.out.println("Conexão recusada. Senha incorreta.");
+                int sessionId = Frame.sessionId(frame);
+                if (sessionKey == null || sessionKey != sessionId) {
+                    sessionKey = sessionId;
+                }
+                session = sessions.get(sessionKey);
+                if (session == null || !session.clientAddress().equals(clientAddress)) {
+                    if (TransferMetrics.TRACE) {
+                        System.out.println("Pacote de " + clientAddress + " ignorado: nenhuma sessão aberta.");
+                    }
+                    continue;
+                }
             }
+            session.deliver(frame);
         }
     }
 
-    private static String listarArquivos() {
-        StringBuilder fileList = new StringBuilder();
-        try {
-            Files.list(Paths.get(FILES_DIRECTORY))
-                    .map(Path::getFileName)
-                    .map(Path::toString)
-                    .forEach(fileName -> fileList.append(fileName).append("\n"));
-        } catch (IOException e) {
-            System.err.println("Erro ao listar arquivos: " + e.getMessage());
+    // responde com ERROR, fora de qualquer sessão, ao SYN recebido com o limite de sessões atingido
+    private static ByteBuffer recusar(DatagramChannel channel, InetSocketAddress clientAddress, ByteBuffer refusal) throws IOException {
+        if (refusal == null) {
+            byte[] message = ("Servidor ocupado: limite de " + MAX_SESSIONS + " sessões atingido.").getBytes(StandardCharsets.UTF_8);
+            refusal = ByteBuffer.allocate(Frame.HEADER_SIZE + message.length);
+            refusal.put(Frame.HEADER_SIZE, message);
+            Frame.writeHeader(refusal, Frame.ERROR, 0, 0, 0, message.length);
+        }
+        if (TransferMetrics.TRACE) {
+            System.out.println("SYN de " + clientAddress + " recusado: limite de sessões atingido.");
         }
-        return fileList.toString();
+        channel.send(refusal.clear(), clientAddress);
+        return refusal;
     }
 
-    private static void enviarArquivo(String fileName, InetAddress address, int port, DatagramSocket socket) throws IOException {
-        Path filePath = Paths.get(FILES_DIRECTORY, fileName);
-        if (Files.exists(filePath)) {
-            byte[] fileBytes = Files.readAllBytes(filePath);
-            int fileSize = fileBytes.length;
-            int numPackets = (int) Math.ceil((double) fileSize / PACKET_SIZE);
-            int lastPacketSize = fileSize % PACKET_SIZE;
-            if (lastPacketSize == 0) {
-                lastPacketSize = PACKET_SIZE;
-            }
-            int base = 0; // base da janela
-            int nextSeqNum = 0; // próximo número de sequência a ser enviado
-            int unAckedSeqNum = 0; // próximo número de sequência esperado para ACK
-            int packetsSent = 0; // número de pacotes enviados
+    // identificador aleatório e diferente de zero, que o cliente usa antes de conhecer a sessão
+    private int novoIdentificador() {
+        int sessionId;
+        do {
+            sessionId = ThreadLocalRandom.current().nextInt();
+        } while (sessionId == 0 || sessions.containsKey(sessionId));
+        return sessionId;
+    }
 
-            // enviar tamanho do arquivo para o cliente
-            ByteBuffer sizeBuffer = ByteBuffer.allocate(Integer.BYTES);
-            sizeBuffer.putInt(fileSize);
-            DatagramPacket sizePacket = new DatagramPacket(sizeBuffer.array(), sizeBuffer.array().length, address, port);
-            socket.send(sizePacket);
-            System.out.println("Tamanho do arquivo enviado: " + fileSize + " bytes");
+    void closeSession(ServerSession session) {
+        sessions.remove(session.sessionId());
+        sessionsByAddress.remove(session.clientAddress());
+        System.out.println("Sessão encerrada: " + session.clientAddress());
+    }
 
-            byte[] ackLengthFileData = new byte[Integer.BYTES];
-            DatagramPacket ackLengthFilePacket = new DatagramPacket(ackLengthFileData, ackLengthFileData.length);
-            socket.setSoTimeout(1000); // tempo de espera para ACK
-            socket.receive(ackLengthFilePacket);
-            System.out.println("ACK recebido para o pacote do tamanho do arquivo");
+    @Override
+    public void close() throws IOException {
+        catalog.close();
+        if (metrics != null) {
+            metrics.close();
+        }
+        scheduler.close();
+        channel.close();
+        for (DatagramChannel streamChannel : streamChannels) {
+            streamChannel.close();
+        }
+        workers.shutdownNow();
+    }
 
-            while (unAckedSeqNum < numPackets) {
-                // enviar pacotes ainda não confirmados e que estão dentro da janela
-                while (nextSeqNum < base + WINDOW_SIZE && nextSeqNum < numPackets) {
-                    int packetSize = nextSeqNum == numPackets - 1 ? lastPacketSize : PACKET_SIZE;
-                    byte[] packetData = new byte[packetSize];
-                    System.arraycopy(fileBytes, nextSeqNum * PACKET_SIZE, packetData, 0, packetSize);
-                    ByteBuffer packetBuffer = ByteBuffer.allocate(packetSize + Integer.BYTES);
-                    packetBuffer.putInt(nextSeqNum);
-                    packetBuffer.put(packetData);
-                    DatagramPacket packet = new DatagramPacket(packetBuffer.array(), packetBuffer.array().length, address, port);
-                    socket.send(packet);
-                    System.out.println("Enviando pacote #" + nextSeqNum);
-                    nextSeqNum++;
-                    packetsSent++;
-                }
+    // responde a um LIST_REQUEST com a página seguinte do catálogo, do tamanho de um segmento
+    void listarArquivos(FrameChannel canal) throws IOException {
+        String[] request = canal.payloadString().split("\n", 2);
+        String prefix = request[0];
+        String cursor = request.length > 1 ? request[1] : "";
+        ByteBuffer page = canal.sendBuffer();
+        page.limit(Frame.HEADER_SIZE + canal.segmentSize()).position(Frame.HEADER_SIZE);
+        boolean more = catalog.listar(prefix, cursor, page);
+        int length = page.position() - Frame.HEADER_SIZE;
+        page.clear();
+        canal.send(Frame.LIST, more ? Frame.FLAG_MORE : 0, canal.offset(), length);
+    }
 
-                // aguardar ACK dos pacotes enviados
-                while (packetsSent > unAckedSeqNum) {
-                    byte[] ackData = new byte[Integer.BYTES];
-                    DatagramPacket ackPacket = new DatagramPacket(ackData, ackData.length);
-                    try {
-                        socket.setSoTimeout(1000); // tempo de espera para ACK
-                        socket.receive(ackPacket);
-                        int ackSeqNum = ByteBuffer.wrap(ackPacket.getData(), 0, ackPacket.getLength()).getInt();
-                        System.out.println("ACK recebido para o pacote #" + ackSeqNum);
-                        if (ackSeqNum >= base) {
-                            base = ackSeqNum + 1; // atualizar a base da janela
-                        }
-                    } catch (SocketTimeoutException e) {
-                        // timeout expirado, reenviar pacotes ainda não confirmados
-                        System.out.println("Timeout expirado. Reenviando pacotes...");
-                        nextSeqNum = base;
-                        packetsSent = 0;
-                    }
-                    unAckedSeqNum++;
-                }
+    void enviarArquivo(String fileName, FrameChannel canal, ServerSession session) throws IOException {
+        Path filePath = filesDirectory.resolve(fileName);
+        if (Files.exists(filePath)) {
+            int streams = ParallelTransfer.fluxos(Files.size(filePath), canal.segmentSize(), session.streams());
+            if (streams > 1) {
+                enviarEmParalelo(filePath, fileName, streams, canal, session);
+            } else {
+                enviarDoCatalogo(filePath, fileName, canal);
             }
             System.out.println("Arquivo \"" + fileName + "\" enviado para o cliente.");
         } else {
             System.out.println("Arquivo não encontrado: " + fileName);
+            canal.send(Frame.ERROR, 0, "Arquivo não encontrado: " + fileName);
         }
     }
 //    private static void receberArquivo(DatagramSocket socket, InetAddress address, int port) throws IOException {
@@ -188,94 +283,200 @@ public class UDPServer {
 //        System.out.println("Arquivo \"" + fileName + "\" recebido do cliente e salvo no servidor.");
 //    }
 
-    private static void receberArquivo(DatagramSocket socket, InetAddress address, int port) throws IOException {
-        // recebe o nome do arquivo enviado pelo cliente
-        byte[] fileNameBuffer = new byte[BUFFER_SIZE];
-        DatagramPacket fileNamePacket = new DatagramPacket(fileNameBuffer, fileNameBuffer.length);
-        socket.receive(fileNamePacket);
-        String fileName = new String(fileNamePacket.getData(), 0, fileNamePacket.getLength());
+    void receberArquivo(FrameChannel canal, ServerSession session) throws IOException {
+        // o anúncio do cliente traz a identidade e o nome do arquivo e, no offset, o seu tamanho
+        String fileName = canal.nomeAnunciado();
+        FileIdentity identity = canal.identidadeAnunciada();
 
-        // envia confirmação de recebimento do tamanho do arquivo
-        DatagramPacket ackPacket = new DatagramPacket(new byte[] { 1 }, 1,  address, port);
-        socket.send(ackPacket);
-
-
-        // recebe o tamanho do arquivo selecionado do servidor
-        byte[] fileSizeBytes = new byte[4];
-        DatagramPacket fileSizePacket = new DatagramPacket(fileSizeBytes, fileSizeBytes.length);
-        socket.receive(fileSizePacket);
-        int fileSize = ByteBuffer.wrap(fileSizeBytes).getInt();
-
-        // envia confirmação de recebimento do tamanho do arquivo
-        socket.send(ackPacket);
-
-        // cria buffer para armazenar os dados do arquivo recebidos
-        byte[] fileBytes = new byte[fileSize];
+        // recebe o conteúdo do arquivo direto no disco
+        Path filePath = filesDirectory.resolve(fileName);
+        if ((canal.flags() & Frame.FLAG_PARALLEL) != 0) {
+            receberEmParalelo(filePath, identity, canal, session);
+        } else {
+            new FileReceiver(canal, canal.segmentSize(), janela(canal.segmentSize())).receber(filePath, identity);
+        }
+        System.out.println("Arquivo \"" + fileName + "\" recebido do cliente e salvo no servidor.");
+    }
 
-        // inicia janela deslizante com tamanho definido pela variável WINDOW_SIZE
-        int seqNum = 0;
-        int windowBase = 0;
-        int lastAckReceived = 0;
-        boolean endOfFile = false;
+    // envia as assinaturas dos blocos do arquivo, geradas uma vez por conteúdo e tamanho de segmento
+    void enviarAssinaturas(String fileName, FrameChannel canal) throws IOException {
+        Path filePath = filesDirectory.resolve(fileName);
+        if (!Files.exists(filePath)) {
+            System.out.println("Arquivo não encontrado: " + fileName);
+            canal.send(Frame.ERROR, 0, "Arquivo não encontrado: " + fileName);
+            return;
+        }
+        int segmentSize = canal.segmentSize();
+        try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            FileIdentity identity = catalog.identidade(fileName, file);
+            Path signatures = catalog.assinaturas(fileName, identity, segmentSize);
+            FileChannel signatureFile = null;
+            try {
+                if (signatures != null) {
+                    signatureFile = FileChannel.open(signatures, StandardOpenOption.READ);
+                }
+            } catch (NoSuchFileException e) {
+                // substituídas por outra sessão
+            }
+            boolean cached = true;
+            if (signatureFile == null) {
+                signatures = BlockSignatures.gerar(file, identity, segmentSize);
+                cached = catalog.guardarAssinaturas(fileName, identity, segmentSize, signatures);
+                signatureFile = FileChannel.open(signatures, StandardOpenOption.READ);
+            }
+            try (FileChannel opened = signatureFile) {
+                remetente(canal).enviar(PositionalFile.of(opened), fileName, FileIdentity.of(signatures, opened), 0, opened.size());
+            } finally {
+                if (!cached) {
+                    Files.deleteIfExists(signatures); // o arquivo mudou enquanto as assinaturas eram geradas
+                }
+            }
+        }
+        System.out.println("Assinaturas de \"" + fileName + "\" enviadas para o cliente.");
+    }
 
-        // recebe os pacotes do servidor enquanto a janela deslizante não chega ao final do arquivo
-        while (!endOfFile) {
-            // envia acks para os pacotes já recebidos e processados pela janela deslizante
-            while (seqNum <= lastAckReceived + WINDOW_SIZE && seqNum < fileSize / PACKET_SIZE) {
-                ackPacket = new DatagramPacket(intToBytes(seqNum), 4,  address, port);
-                socket.send(ackPacket);
-                seqNum++;
+    /**
+     * Envia o manifesto dos arquivos que correspondem ao padrão (fingerprint
+     * 0) ou, em seguida, o conteúdo de todos eles concatenados numa única
+     * transferência, se o manifesto ainda tiver a impressão digital informada.
+     */
+    void enviarLote(String pattern, long fingerprint, FrameChannel canal) throws IOException {
+        BatchManifest manifest = catalog.selecionar(pattern);
+        if (manifest.vazio()) {
+            System.out.println("Nenhum arquivo corresponde a " + pattern);
+            canal.send(Frame.ERROR, 0, "Nenhum arquivo corresponde a " + pattern);
+            return;
+        }
+        FileSender sender = remetente(canal);
+        if (fingerprint == 0) {
+            Path manifestPath = Files.createTempFile("udp-", ".manifesto");
+            try {
+                Files.write(manifestPath, manifest.bytes());
+                sender.enviar(manifestPath, pattern);
+            } finally {
+                Files.deleteIfExists(manifestPath);
             }
+            return;
+        }
+        FileIdentity identity = manifest.identidade();
+        if (identity.fingerprint != fingerprint) {
+            canal.send(Frame.ERROR, 0, "Os arquivos de " + pattern + " mudaram; peça o manifesto de novo.");
+            return;
+        }
+        try (ConcatenatedFile files = manifest.abrir(filesDirectory, UnaryOperator.identity(), StandardOpenOption.READ)) {
+            sender.enviar(files, pattern, identity, 0, identity.size);
+        }
+        System.out.println("Lote " + pattern + " enviado: " + manifest.names.size() + " arquivos, " + identity.size + " bytes.");
+    }
 
-            // recebe pacote do servidor
-            byte[] packetBytes = new byte[PACKET_SIZE];
-            DatagramPacket packet = new DatagramPacket(packetBytes, packetBytes.length);
-            socket.receive(packet);
+    // envia o arquivo inteiro reaproveitando a identidade e o resumo guardados no catálogo, e guarda
+    // o resumo calculado no primeiro envio completo
+    private void enviarDoCatalogo(Path filePath, String fileName, FrameChannel canal) throws IOException {
+        try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            FileIdentity identity = catalog.identidade(fileName, file);
+            FileSender sender = remetente(canal);
+            sender.usarResumo(catalog.resumo(fileName, identity));
+            sender.usarCache(cache, filePath);
+            sender.enviar(PositionalFile.of(file), fileName, identity, 0, identity.size);
+            catalog.guardarResumo(fileName, identity, sender.resumo());
+            mostrarCache();
+        }
+    }
 
-            // extrai informações do pacote (número de sequência, dados)
-            int packetSeqNum = ByteBuffer.wrap(packetBytes, 0, 4).getInt();
-            byte[] packetData = Arrays.copyOfRange(packetBytes, 4, packet.getLength());
+    // remetente com a parcela de banda do cliente da sessão do canal
+    private FileSender remetente(FrameChannel canal) {
+        FileSender sender = new FileSender(canal, canal.segmentSize(), janela(canal.segmentSize()));
+        ServerSession session = sessions.get(canal.sessionId());
+        if (session != null) {
+            sender.usarEscalonador(scheduler, session.clientAddress().getAddress());
+        }
+        return sender;
+    }
 
-            // atualiza janela deslizante
-            if (packetSeqNum >= windowBase && packetSeqNum < windowBase + WINDOW_SIZE) {
-                int dataOffset = packetSeqNum * PACKET_SIZE;
-                System.arraycopy(packetData, 0, fileBytes, dataOffset, packetData.length);
-                if (packetSeqNum == windowBase) {
-                    int numPacketsProcessed = 1;
-                    while (windowBase < fileSize / PACKET_SIZE && numPacketsProcessed < WINDOW_SIZE) {
-                        if (windowBase + numPacketsProcessed == seqNum) {
-                            break;
-                        }
-                        int nextPacketOffset = (windowBase + numPacketsProcessed) * PACKET_SIZE;
-                        if (fileBytes[nextPacketOffset] != 0) {
-                            numPacketsProcessed++;
-                        } else {
-                            break;
-                        }
-                    }
-                    lastAckReceived = windowBase + numPacketsProcessed - 1;
-                    windowBase += numPacketsProcessed;
-                }
-                if (windowBase >= fileSize / PACKET_SIZE) {
-                    endOfFile = true;
-                }
-            }
+    private void mostrarCache() {
+        if (cache != null) {
+            System.out.println("Cache de blocos: " + cache.estatisticas());
+        }
+    }
 
-            // envia ack para o último pacote processado pela janela deslizante
-            ackPacket = new DatagramPacket(intToBytes(lastAckReceived), 4, address, port);
-            socket.send(ackPacket);
+    // anuncia o arquivo pela sessão principal e o envia em intervalos pelas sessões dos fluxos;
+    // o aviso de fim só segue depois que todos os intervalos foram confirmados
+    private void enviarEmParalelo(Path filePath, String fileName, int streams, FrameChannel canal,
+                                  ServerSession session) throws IOException {
+        try (ParallelTransfer transfer = ParallelTransfer.paraEnvio(filePath, canal.segmentSize(), streams)) {
+            session.iniciarTransferencia(transfer);
+            long fileSize = transfer.fileSize();
+            canal.send(Frame.FILE_INFO, Frame.FLAG_PARALLEL, fileSize, canal.escreverAnuncio(transfer.identity(), fileName));
+            transfer.aguardar(canal, Frame.DOWNLOAD, () -> canal.send(Frame.FILE_INFO, Frame.FLAG_PARALLEL, fileSize,
+                    canal.escreverAnuncio(transfer.identity(), fileName)));
+            canal.request(Frame.FIN, streams, "", new RttEstimator(), Frame.FIN_ACK);
+            System.out.println("Arquivo enviado em " + streams + " fluxos paralelos.");
+            mostrarCache();
+        } catch (IOException e) {
+            canal.send(Frame.ERROR, 0, e.getMessage());
+            throw e;
+        } finally {
+            session.iniciarTransferencia(null);
         }
+    }
 
-        // salva o arquivo no cliente
-        Path filePath = Paths.get(FILES_DIRECTORY, fileName);
-        Files.write(filePath, fileBytes);
+    // recebe os intervalos pelas sessões dos fluxos e publica o arquivo antes da confirmação única de fim
+    private void receberEmParalelo(Path filePath, FileIdentity identity, FrameChannel canal, ServerSession session) throws IOException {
+        long fileSize = identity.size;
+        int streams = ParallelTransfer.fluxos(fileSize, canal.segmentSize(), session.streams());
+        if (streams <= 1) {
+            canal.send(Frame.ERROR, 0, "Fluxos paralelos não negociados.");
+            throw new IOException("Fluxos paralelos não negociados.");
+        }
+        try (ParallelTransfer transfer = ParallelTransfer.paraRecepcao(filePath, identity, canal.segmentSize(), streams)) {
+            session.iniciarTransferencia(transfer);
+            canal.send(Frame.FILE_INFO_ACK, fileSize);
+            transfer.aguardar(canal, Frame.FILE_INFO, () -> canal.send(Frame.FILE_INFO_ACK, fileSize));
+            transfer.aguardarFim(canal);
+            transfer.publicar();
+            canal.send(Frame.FIN_ACK, streams);
+            System.out.println("Arquivo recebido em " + streams + " fluxos paralelos.");
+        } catch (IOException e) {
+            canal.send(Frame.ERROR, 0, e.getMessage());
+            throw e;
+        } finally {
+            session.iniciarTransferencia(null);
+        }
+    }
 
-        System.out.println("Arquivo \"" + fileName + "\" recebido do cliente e salvo no servidor.");
+    // envia o intervalo do fluxo pela sessão que se juntou à transferência
+    void enviarIntervalo(ParallelTransfer transfer, int stream, String fileName, FrameChannel canal) throws IOException {
+        try {
+            FileSender sender = remetente(canal);
+            sender.usarCache(cache, transfer.filePath());
+            sender.enviar(transfer.file(), fileName, transfer.identity(), transfer.inicio(stream), transfer.fim(stream));
+            transfer.concluir(stream);
+        } catch (IOException | RuntimeException e) {
+            transfer.falhar(e);
+            throw e;
+        }
+    }
 
+    // recebe o intervalo do fluxo, anunciado por um FILE_INFO na sessão que se juntou à transferência
+    void receberIntervalo(ParallelTransfer transfer, int stream, FrameChannel canal) throws IOException {
+        try {
+            if (!canal.identidadeAnunciada().equals(transfer.identity())) {
+                canal.send(Frame.ERROR, 0, "Arquivo diferente do anunciado na sessão principal.");
+                throw new IOException("Arquivo diferente do anunciado na sessão principal.");
+            }
+            new FileReceiver(canal, canal.segmentSize(), janela(canal.segmentSize())).receber(transfer.file(),
+                    transfer.fileSize(), transfer.inicio(stream), transfer.fim(stream), transfer.journal());
+            transfer.concluir(stream);
+        } catch (IOException | RuntimeException e) {
+            transfer.falhar(e);
+            throw e;
+        }
     }
 
-    private static byte[] intToBytes(int value) {
-        return ByteBuffer.allocate(4).putInt(value).array();
+    // mantém em bytes a janela máxima definida para o segmento padrão
+    private static int janela(int segmentSize) {
+        long window = (long) WINDOW_SIZE * Frame.DEFAULT_SEGMENT_SIZE / segmentSize;
+        return (int) Math.max(2 * CongestionController.INITIAL_WINDOW, Math.min(WINDOW_SIZE, window));
     }
 
     public static void main(String[] args) throws IOException {